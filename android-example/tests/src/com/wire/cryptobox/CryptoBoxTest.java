@@ -16,9 +16,16 @@
 package com.wire.cryptobox;
 
 import java.nio.charset.Charset;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.*;
 
@@ -90,6 +97,218 @@ public class CryptoBoxTest extends TestCase {
         }
     }
 
+    public void testEncryptDecryptStream() {
+        try {
+            CryptoSession alice = aliceBox.initSessionFromPreKey("alice", bobKeys[0]);
+            SessionMessage smgs = bobBox.initSessionFromMessage("bob", alice.encrypt("Hello Bøb!".getBytes(utf8)));
+            CryptoSession bob   = smgs.getSession();
+
+            byte[] payload = new byte[3 * 64 * 1024 + 17];
+            for (int i = 0; i < payload.length; ++i) {
+                payload[i] = (byte) i;
+            }
+
+            ByteArrayOutputStream cipher = new ByteArrayOutputStream();
+            byte[] key = alice.encryptStream(new ByteArrayInputStream(payload), cipher);
+
+            ByteArrayOutputStream plain = new ByteArrayOutputStream();
+            bob.decryptStream(key, new ByteArrayInputStream(cipher.toByteArray()), plain);
+            assertTrue("Payload mismatch", Arrays.equals(payload, plain.toByteArray()));
+
+            // A truncated payload must not be accepted.
+            byte[] key2 = alice.encryptStream(new ByteArrayInputStream(payload), cipher = new ByteArrayOutputStream());
+            byte[] truncated = Arrays.copyOf(cipher.toByteArray(), cipher.size() - 40);
+            try {
+                bob.decryptStream(key2, new ByteArrayInputStream(truncated), new ByteArrayOutputStream());
+                fail("Expected an exception for a truncated payload.");
+            } catch (CryptoException ex) {
+                assertEquals(CryptoException.Code.INVALID_SIGNATURE, ex.code);
+            }
+
+            // Nor may anything follow the final record.
+            byte[] key3 = alice.encryptStream(new ByteArrayInputStream(payload), cipher = new ByteArrayOutputStream());
+            byte[] extended = Arrays.copyOf(cipher.toByteArray(), cipher.size() + 64 * 1024);
+            try {
+                bob.decryptStream(key3, new ByteArrayInputStream(extended), new ByteArrayOutputStream());
+                fail("Expected an exception for an extended payload.");
+            } catch (CryptoException ex) {
+                // Expected
+            }
+        } catch (CryptoException ex) {
+            fail(ex.toString());
+        } catch (IOException ex) {
+            fail(ex.toString());
+        }
+    }
+
+    public void testTransferKeyRetry() {
+        try {
+            CryptoSession alice = aliceBox.initSessionFromPreKey("alice", bobKeys[0]);
+            CryptoSession bob   = bobBox.initSessionFromMessage("bob", alice.encrypt("Hello Bøb!".getBytes(utf8))).getSession();
+
+            byte[] payload = new byte[2 * 64 * 1024 + 5];
+            for (int i = 0; i < payload.length; ++i) {
+                payload[i] = (byte) i;
+            }
+            ByteArrayOutputStream cipher = new ByteArrayOutputStream();
+            byte[] keyMessage = alice.encryptStream(new ByteArrayInputStream(payload), cipher);
+            byte[] truncated = Arrays.copyOf(cipher.toByteArray(), 70000);
+
+            TransferKey key = bob.decryptTransferKey(keyMessage);
+            try {
+                key.decryptStream(new ByteArrayInputStream(truncated), new ByteArrayOutputStream());
+                fail("Expected an exception for a truncated payload.");
+            } catch (CryptoException ex) {
+                assertEquals(CryptoException.Code.INVALID_SIGNATURE, ex.code);
+            }
+
+            // The transfer can be retried, also with a restored key.
+            TransferKey restored = TransferKey.fromEncoded(key.getEncoded());
+            key.destroy();
+            ByteArrayOutputStream plain = new ByteArrayOutputStream();
+            restored.decryptStream(new ByteArrayInputStream(cipher.toByteArray()), plain);
+            assertTrue("Payload mismatch", Arrays.equals(payload, plain.toByteArray()));
+        } catch (CryptoException ex) {
+            fail(ex.toString());
+        } catch (IOException ex) {
+            fail(ex.toString());
+        }
+    }
+
+    public void testBroadcast() {
+        try {
+            CryptoSession alice = aliceBox.initSessionFromPreKey("alice", bobKeys[0]);
+            byte[] payload = "Hello everybody!".getBytes(utf8);
+
+            BroadcastMessage msg = aliceBox.encryptBroadcast(Arrays.asList(alice), payload);
+            assertEquals(1, msg.getEnvelopes().size());
+
+            SessionMessage smgs = bobBox.initSessionFromBroadcast("bob", msg.getEnvelopes().get("alice"), msg.getPayload());
+            assertTrue("Payload mismatch", Arrays.equals(payload, smgs.getMessage()));
+
+            msg = aliceBox.encryptBroadcast(Arrays.asList(alice), payload);
+            byte[] plain = bobBox.decryptBroadcast(smgs.getSession(), msg.getEnvelopes().get("alice"), msg.getPayload());
+            assertTrue("Payload mismatch", Arrays.equals(payload, plain));
+
+            try {
+                bobBox.encryptBroadcast(Arrays.asList(alice), payload);
+                fail("Expected an exception for a session of another box.");
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        } catch (CryptoException ex) {
+            fail(ex.toString());
+        }
+    }
+
+    public void testBroadcastRejectsSwappedPayload() {
+        try {
+            CryptoSession toBob1 = aliceBox.initSessionFromPreKey("bob1", bobKeys[0]);
+            CryptoSession toBob2 = aliceBox.initSessionFromPreKey("bob2", bobKeys[1]);
+            BroadcastMessage msg = aliceBox.encryptBroadcast(Arrays.asList(toBob1, toBob2), "Hello".getBytes(utf8));
+
+            // A recipient learns the payload key from its own envelope and
+            // forges a payload under it for another recipient.
+            byte[] envelope = bobBox.initSessionFromMessage("alice2", msg.getEnvelopes().get("bob2")).getMessage();
+            byte[] key = Arrays.copyOf(envelope, StreamCipher.KEY_LEN);
+            byte[] forged = StreamCipher.seal(key, "Forged".getBytes(utf8));
+
+            try {
+                bobBox.initSessionFromBroadcast("alice1", msg.getEnvelopes().get("bob1"), forged);
+                fail("Expected an exception for a swapped payload.");
+            } catch (CryptoException ex) {
+                assertEquals(CryptoException.Code.INVALID_SIGNATURE, ex.code);
+            }
+        } catch (CryptoException ex) {
+            fail(ex.toString());
+        }
+    }
+
+    public void testInitSessionsFromPreKeys() {
+        try {
+            Map<String, PreKey> prekeys = new LinkedHashMap<String, PreKey>();
+            for (int i = 1; i <= 3; ++i) {
+                prekeys.put("bob" + i, bobKeys[i]);
+            }
+            prekeys.put("invalid", new PreKey(42, new byte[] { 1, 2, 3 }));
+
+            byte[] hello = "Hello Bøb!".getBytes(utf8);
+            Map<String, SessionResult> results = aliceBox.initSessionsFromPreKeys(prekeys, hello);
+            assertEquals(4, results.size());
+            assertFalse(results.get("invalid").isSuccess());
+            assertNull(results.get("invalid").getSession());
+
+            for (int i = 1; i <= 3; ++i) {
+                SessionResult r = results.get("bob" + i);
+                assertTrue(r.isSuccess());
+                assertSame(r.getSession(), aliceBox.getSession("bob" + i));
+                SessionMessage smsg = bobBox.initSessionFromMessage("alice" + i, r.getMessage());
+                assertTrue(Arrays.equals(hello, smsg.getMessage()));
+            }
+
+            prekeys.put(null, bobKeys[4]);
+            try {
+                aliceBox.initSessionsFromPreKeys(prekeys);
+                fail("Null session ID accepted");
+            } catch (IllegalArgumentException expected) {
+                // Rejected before calling into native code.
+            }
+        } catch (CryptoException ex) {
+            fail(ex.toString());
+        }
+    }
+
+    public void testNativeMemoryBudget() {
+        try {
+            CryptoSession alice = aliceBox.initSessionFromPreKey("alice", bobKeys[0]);
+            aliceBox.initSessionFromPreKey("alice2", bobKeys[1]);
+            assertEquals(2, aliceBox.getNativeMemoryStats().getSessionCount());
+            assertTrue(aliceBox.getNativeMemoryStats().getApproximateBytes() > 0);
+
+            // Exceeding the budget saves and closes all idle sessions.
+            aliceBox.setNativeMemoryBudget(1);
+            assertTrue(alice.isClosed());
+            assertEquals(0, aliceBox.getNativeMemoryStats().getSessionCount());
+
+            // Evicted sessions have been saved and can be loaded again.
+            aliceBox.setNativeMemoryBudget(0);
+            assertNotNull(aliceBox.getSession("alice"));
+            assertNotNull(aliceBox.getSession("alice2"));
+        } catch (CryptoException ex) {
+            fail(ex.toString());
+        }
+    }
+
+    public void testRelaxedDurability() {
+        CryptoBox box = null;
+        try {
+            box = CryptoBox.open(mkTmpDir("cryptobox-relaxed"), CryptoBox.Durability.RELAXED);
+            CryptoSession sess = box.initSessionFromPreKey("relaxed", bobKeys[0]);
+            sess.encrypt("Hello Bøb!".getBytes(utf8));
+            sess.save();
+            sess.save();
+            assertEquals(2, box.getPersistenceStats().getSaveRequests());
+            assertEquals(0, box.getPersistenceStats().getSessionWrites());
+
+            box.flush();
+            assertEquals(1, box.getPersistenceStats().getSessionWrites());
+
+            // A deferred save of a deleted session is not written.
+            sess.encrypt("Hello Bøb!".getBytes(utf8));
+            sess.save();
+            box.deleteSession("relaxed");
+            assertEquals(1, box.getPersistenceStats().getSessionWrites());
+        } catch (CryptoException ex) {
+            fail(ex.toString());
+        } catch (IOException ex) {
+            fail(ex.toString());
+        } finally {
+            if (box != null) {
+                box.close();
+            }
+        }
+    }
+
     public void testPreKeyGeneration() {
         try {
             aliceKeys = aliceBox.newPreKeys(0xFFFC, 5);
@@ -221,6 +440,368 @@ public class CryptoBoxTest extends TestCase {
         }
     }
 
+    public void testListAndDeleteSessions() {
+        try {
+            aliceBox.initSessionFromPreKey("alice1", bobKeys[0]).save();
+            aliceBox.initSessionFromPreKey("alice2", bobKeys[1]).save();
+
+            int n = 0;
+            for (SessionInfo info : aliceBox.listSessions()) {
+                assertTrue(info.getId().equals("alice1") || info.getId().equals("alice2"));
+                assertTrue(info.getLastModified() > 0);
+                ++n;
+            }
+            assertEquals(2, n);
+
+            aliceBox.deleteSessions(Arrays.asList("alice1"));
+            assertNull(aliceBox.tryGetSession("alice1"));
+
+            // Loaded sessions are not deleted by age.
+            long future = System.currentTimeMillis() + 60 * 1000;
+            assertEquals(0, aliceBox.deleteSessionsOlderThan(future));
+            aliceBox.closeAllSessions();
+            assertEquals(1, aliceBox.deleteSessionsOlderThan(future));
+            assertNull(aliceBox.tryGetSession("alice2"));
+        } catch (CryptoException ex) {
+            fail(ex.toString());
+        }
+    }
+
+    public void testHasSession() {
+        try {
+            assertFalse(aliceBox.hasSession("alice"));
+            assertNull(aliceBox.tryGetSession("alice"));
+
+            CryptoSession alice = aliceBox.initSessionFromPreKey("alice", bobKeys[0]);
+            assertTrue(aliceBox.hasSession("alice"));
+            alice.save();
+            aliceBox.closeSession(alice);
+            assertTrue(aliceBox.hasSession("alice"));
+            assertNotNull(aliceBox.tryGetSession("alice"));
+
+            aliceBox.deleteSession("alice");
+            assertFalse(aliceBox.hasSession("alice"));
+            assertNull(aliceBox.tryGetSession("alice"));
+
+            // A session closed before it was ever saved cannot be loaded again.
+            CryptoSession unsaved = aliceBox.initSessionFromPreKey("unsaved", bobKeys[1]);
+            assertTrue(aliceBox.hasSession("unsaved"));
+            aliceBox.closeSession(unsaved);
+            assertFalse(aliceBox.hasSession("unsaved"));
+            assertNull(aliceBox.tryGetSession("unsaved"));
+        } catch (CryptoException ex) {
+            fail(ex.toString());
+        }
+    }
+
+    public void testPrefetchSessions() throws InterruptedException {
+        try {
+            for (int i = 0; i < 2; ++i) {
+                CryptoSession s = aliceBox.initSessionFromPreKey("peer" + i, bobKeys[i]);
+                s.save();
+                aliceBox.closeSession(s);
+            }
+
+            List<String> queue = Arrays.asList("peer0", "unknown", "peer1", "peer0");
+            assertEquals(2, aliceBox.prefetchSessions(queue));
+            for (int i = 0; i < 500 && aliceBox.getPrefetchedSessionCount() < 2; ++i) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, aliceBox.getPrefetchedSessionCount());
+
+            // Loaded sessions are not prefetched again.
+            assertEquals(0, aliceBox.prefetchSessions(queue));
+            assertFalse(aliceBox.getSession("peer1").isClosed());
+
+            // Prefetching does not push the box over its native memory budget.
+            aliceBox.closeAllSessions();
+            CryptoSession inUse = aliceBox.getSession("peer0");
+            aliceBox.setNativeMemoryBudget(aliceBox.getNativeMemoryStats().getApproximateBytes());
+            assertEquals(0, aliceBox.prefetchSessions(queue));
+            assertFalse(inUse.isClosed());
+            aliceBox.setNativeMemoryBudget(0);
+
+            aliceBox.setPrefetchLimit(0);
+            aliceBox.closeAllSessions();
+            assertEquals(0, aliceBox.prefetchSessions(queue));
+        } catch (CryptoException ex) {
+            fail(ex.toString());
+        }
+    }
+
+    public void testMetadataWithoutLock() throws InterruptedException {
+        try {
+            final CryptoSession alice = aliceBox.initSessionFromPreKey("alice", bobKeys[0]);
+            byte[] fp = alice.getRemoteFingerprint();
+            fp[0] ^= 1;
+            assertTrue(Arrays.equals(bobBox.getLocalFingerprint(), alice.getRemoteFingerprint()));
+
+            // Listeners are called with the session lock held.
+            final boolean[] read = new boolean[1];
+            CryptoBox.setOperationListener(new OperationListener() {
+                @Override public void onOperation(Operation op, String sid, int inputSize, int outputSize,
+                                                  CryptoException.Code error, long lockWaitNanos, long durationNanos) {
+                    if (op != Operation.ENCRYPT) {
+                        return;
+                    }
+                    Thread reader = new Thread() {
+                        @Override public void run() {
+                            try {
+                                read[0] = !alice.isClosed() && !aliceBox.isClosed()
+                                       && alice.getRemoteFingerprint().length > 0;
+                            } catch (CryptoException ex) {
+                                // read[0] stays false
+                            }
+                        }
+                    };
+                    reader.start();
+                    try {
+                        reader.join(5000);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            try {
+                alice.encrypt("Hello".getBytes());
+            } finally {
+                CryptoBox.setOperationListener(null);
+            }
+            assertTrue(read[0]);
+
+            aliceBox.closeSession(alice);
+            assertTrue(alice.isClosed());
+            try {
+                alice.getRemoteFingerprint();
+                fail("Expected IllegalStateException");
+            } catch (IllegalStateException expected) {
+            }
+        } catch (CryptoException ex) {
+            fail(ex.toString());
+        }
+    }
+
+    public void testIdleTimeout() throws InterruptedException {
+        try {
+            CryptoSession alice = aliceBox.initSessionFromPreKey("alice", bobKeys[0]);
+            aliceBox.setIdleTimeout(10, TimeUnit.MILLISECONDS);
+            Thread.sleep(50);
+            aliceBox.sweepIdleSessions();
+
+            assertTrue(alice.isClosed());
+            assertEquals(1, aliceBox.getSweptSessionCount());
+
+            // Swept sessions have been saved and can be loaded again.
+            aliceBox.setIdleTimeout(0, TimeUnit.MILLISECONDS);
+            assertNotNull(aliceBox.getSession("alice"));
+        } catch (CryptoException ex) {
+            fail(ex.toString());
+        }
+    }
+
+    public void testOperationListener() {
+        final List<OperationListener.Operation> ops = new ArrayList<OperationListener.Operation>();
+        final List<CryptoException.Code> errors = new ArrayList<CryptoException.Code>();
+        CryptoBox.setOperationListener(new OperationListener() {
+            @Override public void onOperation(Operation op, String sid, int inputSize, int outputSize,
+                                              CryptoException.Code error, long lockWaitNanos, long durationNanos) {
+                synchronized (ops) {
+                    ops.add(op);
+                    errors.add(error);
+                }
+            }
+        });
+        try {
+            CryptoSession alice = aliceBox.initSessionFromPreKey("alice", bobKeys[0]);
+            alice.encrypt("Hello Bøb!".getBytes(utf8));
+            try {
+                alice.decrypt(new byte[] { 1, 2, 3 });
+                fail("Expected CryptoException");
+            } catch (CryptoException ex) {
+                // expected
+            }
+
+            synchronized (ops) {
+                assertEquals(Arrays.asList(
+                    OperationListener.Operation.INIT_FROM_PREKEY,
+                    OperationListener.Operation.ENCRYPT,
+                    OperationListener.Operation.DECRYPT), ops);
+                assertNull(errors.get(1));
+                assertNotNull(errors.get(2));
+            }
+        } catch (CryptoException ex) {
+            fail(ex.toString());
+        } finally {
+            CryptoBox.setOperationListener(null);
+        }
+    }
+
+    public void testCompression() {
+        try {
+            aliceBox.setCompressionEnabled("alice", true);
+            bobBox.setCompressionEnabled("bob", true);
+
+            StringBuilder json = new StringBuilder();
+            for (int i = 0; i < 100; ++i) {
+                json.append("{\"id\":").append(i).append(",\"text\":\"Hello Bøb!\"}");
+            }
+            byte[] payload = json.toString().getBytes(utf8);
+
+            CryptoSession alice = aliceBox.initSessionFromPreKey("alice", bobKeys[0]);
+            byte[] cipher = alice.encrypt(payload);
+            assertTrue(cipher.length < payload.length / 2);
+
+            SessionMessage smsg = bobBox.initSessionFromMessage("bob", cipher);
+            assertTrue(Arrays.equals(payload, smsg.getMessage()));
+
+            // Small plaintexts are sent uncompressed.
+            byte[] hello = "Hello Alice!".getBytes(utf8);
+            assertTrue(Arrays.equals(hello, alice.decrypt(smsg.getSession().encrypt(hello))));
+
+            // A declared length beyond what the input can inflate to is rejected.
+            try {
+                Compression.decode(new byte[] { Compression.DEFLATE, 4, 0, 0, 0, 3, 0 });
+                fail("Oversized declared length accepted");
+            } catch (CryptoException expected) {
+                assertEquals(CryptoException.Code.DECODE_ERROR, expected.code);
+            }
+        } catch (CryptoException ex) {
+            fail(ex.toString());
+        }
+    }
+
+    public void testInspectMessage() {
+        try {
+            CryptoSession alice = aliceBox.initSessionFromPreKey("alice", bobKeys[3]);
+            byte[] helloBob = alice.encrypt("Hello Bøb!".getBytes(utf8));
+
+            MessageInfo info = CryptoBox.inspectMessage(helloBob);
+            assertEquals(MessageInfo.Type.PREKEY, info.getType());
+            assertEquals(bobKeys[3].id, info.getPreKeyId());
+            assertTrue(Arrays.equals(aliceBox.getLocalFingerprint(), info.getRemoteFingerprint()));
+
+            // Once the peer has replied, messages are regular cipher messages.
+            SessionMessage smsg = bobBox.initSessionFromMessage("bob", helloBob);
+            alice.decrypt(smsg.getSession().encrypt("Hello Alice!".getBytes(utf8)));
+            info = CryptoBox.inspectMessage(alice.encrypt("Hello again!".getBytes(utf8)));
+            assertEquals(MessageInfo.Type.CIPHER, info.getType());
+            assertEquals(-1, info.getPreKeyId());
+            assertNull(info.getRemoteFingerprint());
+
+            try {
+                CryptoBox.inspectMessage(Arrays.copyOf(helloBob, helloBob.length / 2));
+                fail("Expected CryptoException");
+            } catch (CryptoException ex) {
+                assertEquals(CryptoException.Code.DECODE_ERROR, ex.code);
+            }
+        } catch (CryptoException ex) {
+            fail(ex.toString());
+        }
+    }
+
+    public void testTraceRecorder() throws IOException {
+        ByteArrayOutputStream trace = new ByteArrayOutputStream();
+        TraceRecorder recorder = new TraceRecorder(trace);
+        CryptoBox.setOperationListener(recorder);
+        try {
+            CryptoSession alice = aliceBox.initSessionFromPreKey("alice", bobKeys[0]);
+            alice.encrypt(new byte[100]);
+        } catch (CryptoException ex) {
+            fail(ex.toString());
+        } finally {
+            CryptoBox.setOperationListener(null);
+            recorder.close();
+        }
+        assertNull(recorder.getError());
+
+        String[] lines = new String(trace.toByteArray(), utf8).split("\n");
+        assertEquals(3, lines.length);
+        assertEquals(TraceRecorder.HEADER, lines[0]);
+        String[] encrypt = lines[2].split(" ");
+        assertEquals("ENCRYPT", encrypt[1]);
+        assertEquals(16, encrypt[2].length()); // Hashed, not "alice".
+        assertEquals("100", encrypt[3]);
+        assertEquals("OK", encrypt[5]);
+    }
+
+    public void testSnapshot() {
+        CryptoBox copy = null;
+        try {
+            CryptoSession alice = aliceBox.initSessionFromPreKey("alice", bobKeys[0]);
+            byte[] helloBob = alice.encrypt("Hello Bøb!".getBytes(utf8));
+            alice.save();
+
+            // Unsaved sessions are neither written nor part of the snapshot.
+            aliceBox.initSessionFromPreKey("unsaved", bobKeys[1]);
+            long writes = aliceBox.getPersistenceStats().getSessionWrites();
+            String copyDir = mkTmpDir("cryptobox-snapshot");
+            aliceBox.snapshot(copyDir, 1024 * 1024);
+            assertEquals(writes, aliceBox.getPersistenceStats().getSessionWrites());
+            assertFalse(new File(new File(copyDir, "sessions"), "unsaved").exists());
+            copy = CryptoBox.open(copyDir);
+            assertTrue(Arrays.equals(aliceBox.copyIdentity(), copy.copyIdentity()));
+
+            CryptoSession restored = copy.getSession("alice");
+            SessionMessage smsg = bobBox.initSessionFromMessage("bob", helloBob);
+            byte[] reply = smsg.getSession().encrypt("Hello Alice!".getBytes(utf8));
+            assertEquals("Hello Alice!", new String(restored.decrypt(reply), utf8));
+        } catch (CryptoException ex) {
+            fail(ex.toString());
+        } catch (IOException ex) {
+            fail(ex.toString());
+        } finally {
+            if (copy != null) {
+                copy.close();
+            }
+        }
+    }
+
+    public void testOwnership() throws InterruptedException {
+        CryptoBox box = null;
+        try {
+            String dir = mkTmpDir("cryptobox-owned");
+            box = CryptoBox.openOwned(dir, 0, TimeUnit.MILLISECONDS);
+            try {
+                CryptoBox.openOwned(dir, 10, TimeUnit.MILLISECONDS);
+                fail("Expected CryptoException");
+            } catch (CryptoException ex) {
+                assertEquals(CryptoException.Code.BOX_LOCKED, ex.code);
+            }
+
+            assertFalse(box.isHandoffRequested());
+
+            // A request is withdrawn when the requester gives up.
+            CryptoBox.requestHandoff(dir);
+            try {
+                CryptoBox.openOwned(dir, 10, TimeUnit.MILLISECONDS);
+                fail("Expected CryptoException");
+            } catch (CryptoException ex) {
+                assertEquals(CryptoException.Code.BOX_LOCKED, ex.code);
+            }
+            assertFalse(new File(dir, ".handoff").exists());
+
+            // Requests are detected in the background.
+            CryptoBox.requestHandoff(dir);
+            long deadline = System.currentTimeMillis() + 2000;
+            while (!box.isHandoffRequested() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(box.isHandoffRequested());
+            box.close();
+
+            box = CryptoBox.openOwned(dir, 0, TimeUnit.MILLISECONDS);
+            assertFalse(box.isHandoffRequested());
+        } catch (CryptoException ex) {
+            fail(ex.toString());
+        } catch (IOException ex) {
+            fail(ex.toString());
+        } finally {
+            if (box != null) {
+                box.close();
+            }
+        }
+    }
+
     public void testExternalIdentity() {
         try {
             byte[] aliceIdent = aliceBox.copyIdentity();
@@ -39,6 +39,7 @@ jclass cboxjni_pkbundle_class;
 
 jmethodID cboxjni_ex_ctor;
 jmethodID cboxjni_sess_ctor;
+jmethodID cboxjni_sess_close;
 jmethodID cboxjni_box_ctor;
 jmethodID cboxjni_sessmsg_ctor;
 jmethodID cboxjni_pkbundle_ctor;
@@ -311,6 +312,99 @@ cboxjni_init_from_prekey(JNIEnv * j_env, jclass j_class, jlong j_ptr, jstring j_
     return cboxjni_new_session(j_env, cbox, sess, j_sid);
 }
 
+JNIEXPORT jobjectArray JNICALL
+cboxjni_init_from_prekeys(JNIEnv * j_env, jclass j_class, jlong j_ptr, jobjectArray j_sids, jobjectArray j_prekeys, jintArray j_errors) {
+    #ifdef CBOXJNI_ANDROID_DEBUG
+    __android_log_write(ANDROID_LOG_DEBUG, CBOXJNI_TAG, "Initialising sessions from prekeys");
+    #endif
+
+    CBox * cbox = (CBox *) (intptr_t) j_ptr;
+
+    jsize num = (*j_env)->GetArrayLength(j_env, j_sids);
+    jobjectArray j_sessions = (*j_env)->NewObjectArray(j_env, num, cboxjni_sess_class, 0);
+    if (cboxjni_check_error(j_env, j_sessions)) {
+        return NULL;
+    }
+
+    jint * errors = (*j_env)->GetIntArrayElements(j_env, j_errors, NULL);
+    if (errors == NULL) {
+        return NULL;
+    }
+
+    jsize i = 0;
+    for (; i < num; ++i) {
+        jstring    j_sid    = (jstring) (*j_env)->GetObjectArrayElement(j_env, j_sids, i);
+        jbyteArray j_prekey = (jbyteArray) (*j_env)->GetObjectArrayElement(j_env, j_prekeys, i);
+        if ((*j_env)->ExceptionCheck(j_env) == JNI_TRUE) {
+            break;
+        }
+
+        char const * sid = (*j_env)->GetStringUTFChars(j_env, j_sid, 0);
+        if (cboxjni_check_error(j_env, sid)) {
+            break;
+        }
+
+        size_t prekey_len = (*j_env)->GetArrayLength(j_env, j_prekey);
+        jbyte *  prekey   = (*j_env)->GetByteArrayElements(j_env, j_prekey, NULL);
+
+        if (prekey == NULL) {
+            (*j_env)->ReleaseStringUTFChars(j_env, j_sid, sid);
+            break;
+        }
+
+        CBoxSession * sess = NULL;
+        CBoxResult rc = cbox_session_init_from_prekey(cbox, sid, (uint8_t *) prekey, prekey_len, &sess);
+
+        (*j_env)->ReleaseByteArrayElements(j_env, j_prekey, prekey, JNI_ABORT);
+        (*j_env)->ReleaseStringUTFChars(j_env, j_sid, sid);
+
+        errors[i] = rc;
+        if (rc == CBOX_SUCCESS) {
+            jobject j_sess = cboxjni_new_session(j_env, cbox, sess, j_sid);
+            if (j_sess == NULL) {
+                cbox_session_close(sess);
+                break;
+            }
+            (*j_env)->SetObjectArrayElement(j_env, j_sessions, i, j_sess);
+            (*j_env)->DeleteLocalRef(j_env, j_sess);
+        }
+
+        // Keep the number of local references constant, however many sessions.
+        (*j_env)->DeleteLocalRef(j_env, j_sid);
+        (*j_env)->DeleteLocalRef(j_env, j_prekey);
+    }
+
+    (*j_env)->ReleaseIntArrayElements(j_env, j_errors, errors, 0);
+
+    // Never return codes for the entries that have not been attempted.
+    if (i < num && (*j_env)->ExceptionCheck(j_env) == JNI_FALSE) {
+        jclass j_oom = (*j_env)->FindClass(j_env, "java/lang/OutOfMemoryError");
+        if (j_oom != NULL) {
+            (*j_env)->ThrowNew(j_env, j_oom, "Failed to initialise sessions from prekeys");
+        }
+    }
+
+    jthrowable j_ex = (*j_env)->ExceptionOccurred(j_env);
+    if (j_ex != NULL) {
+        // The caller never sees the sessions created so far. Close them
+        // through CryptoSession.close() rather than cbox_session_close(),
+        // so that their finalizers do not close them a second time.
+        (*j_env)->ExceptionClear(j_env);
+        for (i = 0; i < num; ++i) {
+            jobject j_sess = (*j_env)->GetObjectArrayElement(j_env, j_sessions, i);
+            if (j_sess != NULL) {
+                (*j_env)->CallVoidMethod(j_env, j_sess, cboxjni_sess_close);
+                (*j_env)->DeleteLocalRef(j_env, j_sess);
+            }
+            (*j_env)->ExceptionClear(j_env);
+        }
+        (*j_env)->Throw(j_env, j_ex);
+        return NULL;
+    }
+
+    return j_sessions;
+}
+
 JNIEXPORT jobject JNICALL
 cboxjni_init_from_message(JNIEnv * j_env, jclass j_class, jlong j_ptr, jstring j_sid, jbyteArray j_message) {
     char const * sid = (*j_env)->GetStringUTFChars(j_env, j_sid, 0);
@@ -514,6 +608,7 @@ static JNINativeMethod cboxjni_box_methods[] = {
     { "jniGetLocalFingerprint"     , "(J)[B"                                                      , (void *) cboxjni_local_fingerprint           },
     { "jniCopyIdentity"            , "(J)[B"                                                      , (void *) cboxjni_copy_identity               },
     { "jniInitSessionFromPreKey"   , "(JLjava/lang/String;[B)Lcom/wire/cryptobox/CryptoSession;"  , (void *) cboxjni_init_from_prekey            },
+    { "jniInitSessionsFromPreKeys" , "(J[Ljava/lang/String;[[B[I)[Lcom/wire/cryptobox/CryptoSession;", (void *) cboxjni_init_from_prekeys      },
     { "jniInitSessionFromMessage"  , "(JLjava/lang/String;[B)Lcom/wire/cryptobox/SessionMessage;" , (void *) cboxjni_init_from_message           },
     { "jniLoadSession"             , "(JLjava/lang/String;)Lcom/wire/cryptobox/CryptoSession;"    , (void *) cboxjni_session_load                },
     { "jniDeleteSession"           , "(JLjava/lang/String;)V"                                     , (void *) cboxjni_session_delete              }
@@ -580,6 +675,9 @@ jint JNI_OnLoad(JavaVM * vm, void * reserved) {
     cboxjni_sess_ctor = cboxjni_find_method(j_env, cboxjni_sess_class, "<init>", "(JJLjava/lang/String;)V");
     if (cboxjni_sess_ctor == NULL) return JNI_ERR;
 
+    cboxjni_sess_close = cboxjni_find_method(j_env, cboxjni_sess_class, "close", "()V");
+    if (cboxjni_sess_close == NULL) return JNI_ERR;
+
     cboxjni_box_ctor = cboxjni_find_method(j_env, cboxjni_box_class, "<init>", "(J)V");
     if (cboxjni_box_ctor == NULL) return JNI_ERR;
 
@@ -0,0 +1,389 @@
+// Copyright (C) 2015 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.cryptobox;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+import static java.lang.foreign.ValueLayout.JAVA_SHORT;
+
+/**
+ * A backend calling the <tt>cbox_*</tt> functions of <tt>libcryptobox</tt>
+ * directly through the Foreign Function &amp; Memory API, without
+ * <tt>libcryptobox-jni</tt>.
+ *
+ * <p>The inputs of {@link #encrypt} and {@link #decrypt} are copied into
+ * native memory reused by the calling thread and zeroed after the call,
+ * those of all other calls into a confined arena that is freed when the
+ * call returns. Outputs are copied out of the <tt>CBoxVec</tt> returned by
+ * the library before it is freed. Only the API common to JDK 21 (as a
+ * preview) and JDK 22 is used. Requires a 64-bit platform, where
+ * <tt>size_t</tt> is a <tt>long</tt>.</p>
+ *
+ * <p>Selected with <tt>-Dcryptobox.backend=ffm</tt>, see {@link NativeBackend}.
+ * The JVM should be started with <tt>--enable-native-access=ALL-UNNAMED</tt>.</p>
+ */
+final class FfmBackend extends NativeBackend {
+    private static final int CBOX_SUCCESS        = 0;
+    private static final int CBOX_LAST_PREKEY_ID = 0xFFFF;
+
+    private static final Linker       LINKER = Linker.nativeLinker();
+    private static final SymbolLookup LOOKUP;
+
+    static {
+        if (ADDRESS.byteSize() != 8) {
+            throw new UnsupportedOperationException("The ffm backend requires a 64-bit platform.");
+        }
+        // It's called libsodium.dll on Windows, unfortunately.
+        final String prefix = System.getProperty("os.name").toLowerCase().contains("win")
+                            ? "lib" : "";
+        System.loadLibrary(prefix + "sodium");
+        System.loadLibrary("cryptobox");
+        LOOKUP = SymbolLookup.loaderLookup();
+    }
+
+    private static final MethodHandle VEC_DATA  = function("cbox_vec_data", ADDRESS, ADDRESS);
+    private static final MethodHandle VEC_LEN   = function("cbox_vec_len", JAVA_LONG, ADDRESS);
+    private static final MethodHandle VEC_FREE  = procedure("cbox_vec_free", ADDRESS);
+
+    private static final MethodHandle FILE_OPEN      = function("cbox_file_open", JAVA_INT, ADDRESS, ADDRESS);
+    private static final MethodHandle FILE_OPEN_WITH = function("cbox_file_open_with", JAVA_INT, ADDRESS, ADDRESS, JAVA_LONG, JAVA_INT, ADDRESS);
+    private static final MethodHandle IDENTITY_COPY  = function("cbox_identity_copy", JAVA_INT, ADDRESS, ADDRESS);
+    private static final MethodHandle CLOSE          = procedure("cbox_close", ADDRESS);
+    private static final MethodHandle NEW_PREKEY     = function("cbox_new_prekey", JAVA_INT, ADDRESS, JAVA_SHORT, ADDRESS);
+
+    private static final MethodHandle INIT_FROM_PREKEY  = function("cbox_session_init_from_prekey", JAVA_INT, ADDRESS, ADDRESS, ADDRESS, JAVA_LONG, ADDRESS);
+    private static final MethodHandle INIT_FROM_MESSAGE = function("cbox_session_init_from_message", JAVA_INT, ADDRESS, ADDRESS, ADDRESS, JAVA_LONG, ADDRESS, ADDRESS);
+    private static final MethodHandle SESSION_LOAD      = function("cbox_session_load", JAVA_INT, ADDRESS, ADDRESS, ADDRESS);
+    private static final MethodHandle SESSION_SAVE      = function("cbox_session_save", JAVA_INT, ADDRESS, ADDRESS);
+    private static final MethodHandle SESSION_CLOSE     = procedure("cbox_session_close", ADDRESS);
+    private static final MethodHandle SESSION_DELETE    = function("cbox_session_delete", JAVA_INT, ADDRESS, ADDRESS);
+
+    private static final MethodHandle ENCRYPT = function("cbox_encrypt", JAVA_INT, ADDRESS, ADDRESS, JAVA_LONG, ADDRESS);
+    private static final MethodHandle DECRYPT = function("cbox_decrypt", JAVA_INT, ADDRESS, ADDRESS, JAVA_LONG, ADDRESS);
+
+    private static final MethodHandle FINGERPRINT_LOCAL  = function("cbox_fingerprint_local", JAVA_INT, ADDRESS, ADDRESS);
+    private static final MethodHandle FINGERPRINT_REMOTE = function("cbox_fingerprint_remote", JAVA_INT, ADDRESS, ADDRESS);
+    private static final MethodHandle FINGERPRINT_PREKEY = function("cbox_fingerprint_prekey", JAVA_INT, ADDRESS, JAVA_LONG, ADDRESS);
+
+    /**
+     * Native memory reused by the calls of a thread: the slot written by
+     * the library and a buffer for the input, grown as needed. Freed when
+     * the thread and thus the automatic arena become unreachable.
+     */
+    private static final class Scratch {
+        private final Arena arena = Arena.ofAuto();
+        final MemorySegment out = arena.allocate(ADDRESS);
+        private MemorySegment buf = arena.allocate(1024);
+
+        MemorySegment bytes(byte[] b) {
+            if (buf.byteSize() < b.length) {
+                buf = Arena.ofAuto().allocate(Math.max(b.length, 2 * buf.byteSize()));
+            }
+            MemorySegment.copy(b, 0, buf, JAVA_BYTE, 0, b.length);
+            return buf;
+        }
+
+        /** Zero the first <tt>len</tt> bytes of the buffer, so that no plaintext lingers in it. */
+        void clear(int len) {
+            buf.asSlice(0, Math.min(len, buf.byteSize())).fill((byte) 0);
+        }
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    @Override String name() {
+        return "ffm";
+    }
+
+    // CryptoBox
+
+    @Override CryptoBox open(String dir) throws CryptoException {
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment out = arena.allocate(ADDRESS);
+            check((int) FILE_OPEN.invokeExact(string(arena, dir), out));
+            return new CryptoBox(out.get(ADDRESS, 0).address());
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override CryptoBox openWith(String dir, byte[] id, int mode) throws CryptoException {
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment out = arena.allocate(ADDRESS);
+            check((int) FILE_OPEN_WITH.invokeExact(string(arena, dir), bytes(arena, id), (long) id.length, mode, out));
+            return new CryptoBox(out.get(ADDRESS, 0).address());
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override byte[] getFingerprintFromPrekey(byte[] prekey) throws CryptoException {
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment out = arena.allocate(ADDRESS);
+            check((int) FINGERPRINT_PREKEY.invokeExact(bytes(arena, prekey), (long) prekey.length, out));
+            return vec(out);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override PreKey newLastPreKey(long ptr) throws CryptoException {
+        return newPreKey(ptr, CBOX_LAST_PREKEY_ID);
+    }
+
+    @Override PreKey[] newPreKeys(long ptr, int start, int num) throws CryptoException {
+        PreKey[] pks = new PreKey[num];
+        for (int i = 0; i < num; ++i) {
+            pks[i] = newPreKey(ptr, (start + i) % 0xFFFF);
+        }
+        return pks;
+    }
+
+    private static PreKey newPreKey(long ptr, int id) throws CryptoException {
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment out = arena.allocate(ADDRESS);
+            check((int) NEW_PREKEY.invokeExact(pointer(ptr), (short) id, out));
+            return new PreKey(id, vec(out));
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override byte[] getLocalFingerprint(long ptr) throws CryptoException {
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment out = arena.allocate(ADDRESS);
+            check((int) FINGERPRINT_LOCAL.invokeExact(pointer(ptr), out));
+            return vec(out);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override CryptoSession initSessionFromPreKey(long ptr, String sid, byte[] prekey) throws CryptoException {
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment out = arena.allocate(ADDRESS);
+            check((int) INIT_FROM_PREKEY.invokeExact(pointer(ptr), string(arena, sid), bytes(arena, prekey), (long) prekey.length, out));
+            return new CryptoSession(ptr, out.get(ADDRESS, 0).address(), sid);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override CryptoSession[] initSessionsFromPreKeys(long ptr, String[] sids, byte[][] prekeys, int[] errors) {
+        CryptoSession[] sessions = new CryptoSession[sids.length];
+        int i = 0;
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment out = arena.allocate(ADDRESS);
+            for (; i < sids.length; ++i) {
+                // A fresh arena per session keeps memory use constant, however many sessions.
+                try (Arena call = Arena.ofConfined()) {
+                    errors[i] = (int) INIT_FROM_PREKEY.invokeExact(pointer(ptr), string(call, sids[i]), bytes(call, prekeys[i]), (long) prekeys[i].length, out);
+                }
+                if (errors[i] == CBOX_SUCCESS) {
+                    sessions[i] = new CryptoSession(ptr, out.get(ADDRESS, 0).address(), sids[i]);
+                }
+            }
+        } catch (Throwable t) {
+            // The caller never sees the sessions created so far.
+            for (int k = 0; k < i; ++k) {
+                if (sessions[k] != null) {
+                    sessions[k].close();
+                }
+            }
+            throw unchecked(t);
+        }
+        return sessions;
+    }
+
+    @Override SessionMessage initSessionFromMessage(long ptr, String sid, byte[] message) throws CryptoException {
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment sess  = arena.allocate(ADDRESS);
+            MemorySegment plain = arena.allocate(ADDRESS);
+            check((int) INIT_FROM_MESSAGE.invokeExact(pointer(ptr), string(arena, sid), bytes(arena, message), (long) message.length, sess, plain));
+            CryptoSession session = new CryptoSession(ptr, sess.get(ADDRESS, 0).address(), sid);
+            return new SessionMessage(session, vec(plain));
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override CryptoSession loadSession(long ptr, String sid) throws CryptoException {
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment out = arena.allocate(ADDRESS);
+            check((int) SESSION_LOAD.invokeExact(pointer(ptr), string(arena, sid), out));
+            return new CryptoSession(ptr, out.get(ADDRESS, 0).address(), sid);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override void deleteSession(long ptr, String sid) throws CryptoException {
+        try (Arena arena = Arena.ofConfined()) {
+            check((int) SESSION_DELETE.invokeExact(pointer(ptr), string(arena, sid)));
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override byte[] copyIdentity(long ptr) throws CryptoException {
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment out = arena.allocate(ADDRESS);
+            check((int) IDENTITY_COPY.invokeExact(pointer(ptr), out));
+            return vec(out);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override void close(long ptr) {
+        try {
+            CLOSE.invokeExact(pointer(ptr));
+        } catch (Throwable t) {
+            throw unchecked(t);
+        }
+    }
+
+    // CryptoSession
+
+    @Override void save(long boxPtr, long ptr) throws CryptoException {
+        try {
+            check((int) SESSION_SAVE.invokeExact(pointer(boxPtr), pointer(ptr)));
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override byte[] encrypt(long ptr, byte[] plaintext) throws CryptoException {
+        Scratch scratch = SCRATCH.get();
+        try {
+            check((int) ENCRYPT.invokeExact(pointer(ptr), scratch.bytes(plaintext), (long) plaintext.length, scratch.out));
+            return vec(scratch.out);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        } finally {
+            scratch.clear(plaintext.length);
+        }
+    }
+
+    @Override byte[] decrypt(long ptr, byte[] ciphertext) throws CryptoException {
+        Scratch scratch = SCRATCH.get();
+        try {
+            check((int) DECRYPT.invokeExact(pointer(ptr), scratch.bytes(ciphertext), (long) ciphertext.length, scratch.out));
+            return vec(scratch.out);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        } finally {
+            scratch.clear(ciphertext.length);
+        }
+    }
+
+    @Override byte[] getRemoteFingerprint(long ptr) throws CryptoException {
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment out = arena.allocate(ADDRESS);
+            check((int) FINGERPRINT_REMOTE.invokeExact(pointer(ptr), out));
+            return vec(out);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override void closeSession(long ptr) {
+        try {
+            SESSION_CLOSE.invokeExact(pointer(ptr));
+        } catch (Throwable t) {
+            throw unchecked(t);
+        }
+    }
+
+    // Utilities
+
+    private static MethodHandle function(String name, MemoryLayout result, MemoryLayout... args) {
+        return LINKER.downcallHandle(symbol(name), FunctionDescriptor.of(result, args));
+    }
+
+    private static MethodHandle procedure(String name, MemoryLayout... args) {
+        return LINKER.downcallHandle(symbol(name), FunctionDescriptor.ofVoid(args));
+    }
+
+    private static MemorySegment symbol(String name) {
+        return LOOKUP.find(name).orElseThrow(() -> new UnsatisfiedLinkError("Missing symbol: " + name));
+    }
+
+    private static MemorySegment pointer(long ptr) {
+        return MemorySegment.ofAddress(ptr);
+    }
+
+    /** Copy a string into the arena as a NUL-terminated UTF-8 C string. */
+    private static MemorySegment string(Arena arena, String s) {
+        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+        MemorySegment seg = arena.allocate(utf8.length + 1);
+        MemorySegment.copy(utf8, 0, seg, JAVA_BYTE, 0, utf8.length);
+        seg.set(JAVA_BYTE, utf8.length, (byte) 0);
+        return seg;
+    }
+
+    private static MemorySegment bytes(Arena arena, byte[] b) {
+        MemorySegment seg = arena.allocate(b.length);
+        MemorySegment.copy(b, 0, seg, JAVA_BYTE, 0, b.length);
+        return seg;
+    }
+
+    /** Copy out and free the <tt>CBoxVec</tt> written to <tt>out</tt>. */
+    private static byte[] vec(MemorySegment out) throws Throwable {
+        MemorySegment v = out.get(ADDRESS, 0);
+        try {
+            MemorySegment data = (MemorySegment) VEC_DATA.invokeExact(v);
+            long len = (long) VEC_LEN.invokeExact(v);
+            return data.reinterpret(len).toArray(JAVA_BYTE);
+        } finally {
+            VEC_FREE.invokeExact(v);
+        }
+    }
+
+    private static void check(int rc) throws CryptoException {
+        if (rc != CBOX_SUCCESS) {
+            throw new CryptoException(CryptoException.fromNativeCode(rc));
+        }
+    }
+
+    private static CryptoException rethrow(Throwable t) {
+        if (t instanceof CryptoException) {
+            return (CryptoException) t;
+        }
+        throw unchecked(t);
+    }
+
+    private static RuntimeException unchecked(Throwable t) {
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        throw new IllegalStateException(t);
+    }
+}
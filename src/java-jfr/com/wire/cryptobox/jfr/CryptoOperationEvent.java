@@ -0,0 +1,66 @@
+// Copyright (C) 2015 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.cryptobox.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * A Flight Recorder event for a completed operation of a box or session.
+ *
+ * <p>The event is committed once the operation has completed, so its own
+ * duration is negligible. The time spent waiting for the box or session
+ * lock and the time spent on the operation itself are reported in
+ * separate fields.</p>
+ */
+@Name("com.wire.cryptobox.Operation")
+@Label("Cryptobox Operation")
+@Category({"Cryptobox"})
+@Description("An operation of a CryptoBox or CryptoSession")
+final class CryptoOperationEvent extends Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Session ID Hash")
+    @Description("The truncated SHA-256 hash of the session ID, if any")
+    String sessionIdHash;
+
+    @Label("Input Size")
+    @DataAmount
+    int inputSize;
+
+    @Label("Output Size")
+    @DataAmount
+    int outputSize;
+
+    @Label("Result")
+    @Description("OK or the error code of the failed operation")
+    String result;
+
+    @Label("Lock Wait")
+    @Timespan(Timespan.NANOSECONDS)
+    long lockWait;
+
+    @Label("Operation Time")
+    @Description("The time spent on the operation once the lock was acquired")
+    @Timespan(Timespan.NANOSECONDS)
+    long operationTime;
+}
@@ -0,0 +1,57 @@
+// Copyright (C) 2015 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.cryptobox.jfr;
+
+import com.wire.cryptobox.CryptoBox;
+import com.wire.cryptobox.CryptoException;
+import com.wire.cryptobox.OperationListener;
+import com.wire.cryptobox.TraceRecorder;
+
+/**
+ * An {@link OperationListener} that emits a Java Flight Recorder event of
+ * type <tt>com.wire.cryptobox.Operation</tt> for every operation of a box
+ * or session, so that native crypto time shows up in recordings together
+ * with the session, payload sizes, result and lock contention.
+ *
+ * <p>Session IDs are not recorded in the clear but hashed with
+ * {@link TraceRecorder#hashSessionId}, so that events can be matched with
+ * traces. Install with {@link #install}; events are only constructed while
+ * a recording has the event type enabled.</p>
+ *
+ * <p>Requires a JDK with Flight Recorder, i.e. not Android.</p>
+ */
+public final class JfrOperationListener implements OperationListener {
+    /** Install a <tt>JfrOperationListener</tt> via {@link CryptoBox#setOperationListener}. */
+    public static void install() {
+        CryptoBox.setOperationListener(new JfrOperationListener());
+    }
+
+    @Override public void onOperation(Operation op, String sid, int inputSize, int outputSize,
+                                      CryptoException.Code error, long lockWaitNanos, long durationNanos) {
+        CryptoOperationEvent event = new CryptoOperationEvent();
+        if (!event.isEnabled()) {
+            return;
+        }
+        event.operation     = op.name();
+        event.sessionIdHash = sid == null ? null : TraceRecorder.hashSessionId(sid);
+        event.inputSize     = inputSize;
+        event.outputSize    = outputSize;
+        event.result        = error == null ? "OK" : error.name();
+        event.lockWait      = lockWaitNanos;
+        event.operationTime = durationNanos;
+        event.commit();
+    }
+}
@@ -0,0 +1,47 @@
+// Copyright (C) 2015 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.cryptobox;
+
+import java.util.Map;
+
+/**
+ * A <tt>BroadcastMessage</tt> is the result of {@link CryptoBox#encryptBroadcast}:
+ * a payload encrypted once under a fresh symmetric key, together with that
+ * key encrypted separately for every recipient session.
+ */
+final public class BroadcastMessage {
+    private final byte[] payload;
+    private final Map<String, byte[]> envelopes;
+
+    BroadcastMessage(byte[] payload, Map<String, byte[]> envelopes) {
+        this.payload   = payload;
+        this.envelopes = envelopes;
+    }
+
+    /**
+     * Get the encrypted payload, which is the same for all recipients.
+     */
+    public byte[] getPayload() {
+        return this.payload;
+    }
+
+    /**
+     * Get the encrypted payload keys, by recipient session ID.
+     */
+    public Map<String, byte[]> getEnvelopes() {
+        return this.envelopes;
+    }
+}
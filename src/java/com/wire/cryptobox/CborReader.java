@@ -0,0 +1,155 @@
+// Copyright (C) 2015 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.cryptobox;
+
+/**
+ * A minimal reader of definite-length CBOR, as used by the wire format of
+ * messages, sufficient for picking individual fields out of a message.
+ *
+ * <p>Malformed or truncated input results in a {@link CryptoException}
+ * with the code {@link CryptoException.Code#DECODE_ERROR}.</p>
+ */
+final class CborReader {
+    private static final int UINT  = 0;
+    private static final int BYTES = 2;
+    private static final int MAP   = 5;
+
+    /** The maximum nesting of skipped values. */
+    private static final int MAX_DEPTH = 16;
+
+    private final byte[] buf;
+    private int pos = 0;
+
+    CborReader(byte[] buf) {
+        this.buf = buf;
+    }
+
+    /** Read an unsigned integer of at most <tt>max</tt>. */
+    long uint(long max) throws CryptoException {
+        long n = header(UINT);
+        if (n > max) {
+            throw error();
+        }
+        return n;
+    }
+
+    /** Read the header of a map, returning the number of entries. */
+    int map() throws CryptoException {
+        return length(header(MAP));
+    }
+
+    /** Read a byte string. */
+    byte[] bytes() throws CryptoException {
+        int len = length(header(BYTES));
+        if (len > buf.length - pos) {
+            throw error();
+        }
+        byte[] b = new byte[len];
+        System.arraycopy(buf, pos, b, 0, len);
+        pos += len;
+        return b;
+    }
+
+    /** Skip the next value, whatever its type. */
+    void skip() throws CryptoException {
+        skip(0);
+    }
+
+    private void skip(int depth) throws CryptoException {
+        if (depth > MAX_DEPTH) {
+            throw error();
+        }
+        int major = peek() >>> 5;
+        long n = header(major);
+        switch (major) {
+            case 0: case 1: case 7:
+                break;
+            case 2: case 3:
+                if (n > buf.length - pos) {
+                    throw error();
+                }
+                pos += (int) n;
+                break;
+            case 4:
+                for (int i = length(n); i > 0; --i) {
+                    skip(depth + 1);
+                }
+                break;
+            case 5:
+                for (int i = length(n); i > 0; --i) {
+                    skip(depth + 1);
+                    skip(depth + 1);
+                }
+                break;
+            case 6:
+                skip(depth + 1);
+                break;
+            default:
+                throw error();
+        }
+    }
+
+    private int peek() throws CryptoException {
+        if (pos >= buf.length) {
+            throw error();
+        }
+        return buf[pos] & 0xFF;
+    }
+
+    /** Read the initial byte and argument of a value of the given major type. */
+    private long header(int major) throws CryptoException {
+        int b = peek();
+        if (b >>> 5 != major) {
+            throw error();
+        }
+        ++pos;
+        int info = b & 0x1F;
+        if (info < 24) {
+            return info;
+        }
+        int size;
+        switch (info) {
+            case 24: size = 1; break;
+            case 25: size = 2; break;
+            case 26: size = 4; break;
+            case 27: size = 8; break;
+            default: throw error(); // Reserved or indefinite length.
+        }
+        if (size > buf.length - pos) {
+            throw error();
+        }
+        long n = 0;
+        for (int i = 0; i < size; ++i) {
+            n = (n << 8) | (buf[pos++] & 0xFF);
+        }
+        if (n < 0) {
+            throw error();
+        }
+        return n;
+    }
+
+    private int length(long n) throws CryptoException {
+        // Every entry takes at least one byte.
+        if (n > buf.length - pos) {
+            throw error();
+        }
+        return (int) n;
+    }
+
+    private static CryptoException error() {
+        return new CryptoException(CryptoException.Code.DECODE_ERROR);
+    }
+}
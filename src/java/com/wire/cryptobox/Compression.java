@@ -0,0 +1,145 @@
+// Copyright (C) 2015 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.cryptobox;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The compressed encoding of plaintexts, used with peers that opted in via
+ * {@link CryptoBox#setCompressionEnabled}.
+ *
+ * <p>An encoded plaintext starts with a flag byte. With {@link #RAW}, the
+ * plaintext follows as is. With {@link #DEFLATE}, the 4-byte big-endian
+ * length of the plaintext follows, and then the plaintext compressed with
+ * raw DEFLATE (RFC 1951).</p>
+ */
+final class Compression {
+    static final byte RAW     = 0;
+    static final byte DEFLATE = 1;
+
+    /** The maximum length of a decompressed plaintext. */
+    static final int MAX_LENGTH = 64 * 1024 * 1024;
+
+    /**
+     * The maximum ratio of decompressed to compressed length that DEFLATE
+     * can achieve. A larger declared length is rejected up front.
+     */
+    private static final int MAX_RATIO = 1032;
+
+    /** The initial size of the output buffer of {@link #inflate}, in bytes. */
+    private static final int INITIAL_BUFFER = 4096;
+
+    private static final int HEADER_LEN = 5;
+
+    private Compression() {}
+
+    /**
+     * Encode a plaintext, compressing it if it is at least <tt>threshold</tt>
+     * bytes long and compression makes it smaller.
+     */
+    static byte[] encode(byte[] plaintext, int threshold) {
+        if (plaintext.length >= threshold && plaintext.length > HEADER_LEN) {
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                deflater.setInput(plaintext);
+                deflater.finish();
+                // Only worth it if smaller than the raw encoding.
+                byte[] out = new byte[plaintext.length];
+                int len = HEADER_LEN;
+                while (!deflater.finished() && len < out.length) {
+                    len += deflater.deflate(out, len, out.length - len);
+                }
+                if (deflater.finished()) {
+                    out[0] = DEFLATE;
+                    out[1] = (byte) (plaintext.length >>> 24);
+                    out[2] = (byte) (plaintext.length >>> 16);
+                    out[3] = (byte) (plaintext.length >>> 8);
+                    out[4] = (byte) plaintext.length;
+                    return Arrays.copyOf(out, len);
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+        byte[] out = new byte[plaintext.length + 1];
+        out[0] = RAW;
+        System.arraycopy(plaintext, 0, out, 1, plaintext.length);
+        return out;
+    }
+
+    /** Decode a plaintext produced by {@link #encode}. */
+    static byte[] decode(byte[] data) throws CryptoException {
+        if (data.length < 1) {
+            throw new CryptoException(CryptoException.Code.DECODE_ERROR);
+        }
+        switch (data[0]) {
+            case RAW:
+                return Arrays.copyOfRange(data, 1, data.length);
+            case DEFLATE:
+                return inflate(data);
+            default:
+                throw new CryptoException(CryptoException.Code.DECODE_ERROR);
+        }
+    }
+
+    private static byte[] inflate(byte[] data) throws CryptoException {
+        if (data.length < HEADER_LEN) {
+            throw new CryptoException(CryptoException.Code.DECODE_ERROR);
+        }
+        int len = ((data[1] & 0xFF) << 24) | ((data[2] & 0xFF) << 16)
+                | ((data[3] & 0xFF) << 8)  |  (data[4] & 0xFF);
+        long compressed = data.length - HEADER_LEN;
+        if (len < 0 || len > MAX_LENGTH || len > compressed * MAX_RATIO) {
+            throw new CryptoException(CryptoException.Code.DECODE_ERROR);
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data, HEADER_LEN, data.length - HEADER_LEN);
+            // The declared length is not trusted, so the buffer only grows
+            // with the data actually inflated.
+            byte[] out = new byte[Math.min(len, INITIAL_BUFFER)];
+            int n = 0;
+            while (!inflater.finished()) {
+                if (n == out.length) {
+                    if (n == len) {
+                        // Only the end of the stream may follow, not more output.
+                        if (inflater.inflate(new byte[1]) != 0) {
+                            throw new CryptoException(CryptoException.Code.DECODE_ERROR);
+                        }
+                        break;
+                    }
+                    out = Arrays.copyOf(out, (int) Math.min(len, 2L * out.length));
+                }
+                int k = inflater.inflate(out, n, out.length - n);
+                if (k == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += k;
+            }
+            if (n != len || !inflater.finished()) {
+                throw new CryptoException(CryptoException.Code.DECODE_ERROR);
+            }
+            return out;
+        } catch (DataFormatException e) {
+            throw new CryptoException(CryptoException.Code.DECODE_ERROR);
+        } finally {
+            inflater.end();
+        }
+    }
+}
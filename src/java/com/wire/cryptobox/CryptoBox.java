@@ -15,7 +15,32 @@
 
 package com.wire.cryptobox;
 
-import java.util.HashMap;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.wire.cryptobox.OperationListener.Operation;
 
 /**
  * A <tt>CryptoBox</tt> is an opaque container of all the necessary key material
@@ -41,46 +66,230 @@ import java.util.HashMap;
  * @see CryptoSession
  */
 final public class CryptoBox {
-    static {
-        // It's called libsodium.dll on Windows, unfortunately.
-        final String prefix = System.getProperty("os.name").toLowerCase().contains("win")
-                            ? "lib" : "";
-        System.loadLibrary(prefix + "sodium");
-        System.loadLibrary("cryptobox");
-        System.loadLibrary("cryptobox-jni");
-    }
-
     /** The max ID of an ephemeral prekey generated by {@link #newPreKeys}. */
     public static final int MAX_PREKEY_ID  = 0xFFFE;
 
     /** The desired local storage mode for use with {@link #openWith}. */
     public enum IdentityMode { COMPLETE, PUBLIC }
 
+    /**
+     * The durability of session saves, for use with {@link #open(String, Durability)}
+     * and {@link #openWith(String, byte[], IdentityMode, Durability)}.
+     *
+     * <p>This determines when a {@link CryptoSession#save} is written to
+     * storage. How an individual write is synced to disk is up to the
+     * native storage, which offers no control over it. Prekeys are always
+     * written immediately, since they are published right after being
+     * generated.</p>
+     */
+    public enum Durability {
+        /** Every save is written immediately. This is the default. */
+        STRICT,
+
+        /**
+         * Saves are only written on {@link CryptoBox#flush} or when the session is
+         * closed, be it explicitly, by eviction or by closing the box.
+         *
+         * <p>Not crash-safe: if the process dies, all deferred saves are lost
+         * and the session state in storage rolls back past messages that have
+         * already been encrypted or decrypted, so that message keys are reused
+         * and peers fail to decrypt. Only for ephemeral boxes, e.g. of bots
+         * or tests, whose storage is discarded after a crash.</p>
+         */
+        RELAXED
+    }
+
+    /** The default minimum size of plaintexts compressed for peers with compression enabled, in bytes. */
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 256;
+
+    /** The default maximum number of sessions being prefetched at a time, see {@link #prefetchSessions}. */
+    public static final int DEFAULT_PREFETCH_LIMIT = 16;
+
+    /** The approximate native memory held by an open box itself, in bytes. */
+    static final long BOX_NATIVE_SIZE = 4 * 1024;
+
+    /** The approximate native memory held by a session in addition to its serialised size, in bytes. */
+    static final long SESSION_NATIVE_SIZE = 2 * 1024;
+
+    /** The length of the hash of the payload in the envelopes of {@link #encryptBroadcast}. */
+    private static final int BROADCAST_HASH_LEN = 32;
+
+    /** The number of sessions deleted per acquisition of the box lock by bulk deletions. */
+    private static final int DELETE_BATCH = 64;
+
     private static final Object OPEN_LOCK = new Object();
-    private long ptr;
+    private static final AtomicLong TOTAL_BOXES    = new AtomicLong();
+    private static final AtomicLong TOTAL_SESSIONS = new AtomicLong();
+    private static final AtomicLong TOTAL_BYTES    = new AtomicLong();
+
+    /** Only written with the box lock held; volatile for the lock-free {@link #isClosed}. */
+    private volatile long ptr;
+    private volatile byte[] localFingerprint;
+    private File dir;
     private final Object lock = new Object();
-    private final HashMap<String, CryptoSession> sessions = new HashMap<String, CryptoSession>();
+    /** The loaded sessions, in access order, i.e. least recently obtained first. */
+    private final LinkedHashMap<String, CryptoSession> sessions =
+        new LinkedHashMap<String, CryptoSession>(16, 0.75f, true);
+    private volatile Set<String> index;
+    private final AtomicLong nativeBytes = new AtomicLong();
+    private long nativeBudget = 0;
+    /** Sessions chosen to be closed for the budget once written, see {@link #evict}. */
+    private final Set<CryptoSession> evicting =
+        Collections.newSetFromMap(new ConcurrentHashMap<CryptoSession, Boolean>());
+
+    private Durability durability = Durability.STRICT;
+    private final Set<CryptoSession> pendingSaves =
+        Collections.newSetFromMap(new ConcurrentHashMap<CryptoSession, Boolean>());
+    private final AtomicLong saveRequests  = new AtomicLong();
+    private final AtomicLong sessionWrites = new AtomicLong();
+    private final AtomicLong preKeyWrites  = new AtomicLong();
+    private final AtomicLong bytesWritten  = new AtomicLong();
+
+    private long idleTimeout = 0;
+    private ScheduledFuture<?> idleSweeper;
+    private final AtomicLong sweptSessions = new AtomicLong();
+
+    /** Only written with the box lock held; volatile for the lock-free {@link #isHandoffRequested}. */
+    private volatile OwnerLock owner;
 
-    private CryptoBox(long ptr) {
+    private final Set<String> compressed =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+
+    private final Set<String> prefetching =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile int prefetchLimit = DEFAULT_PREFETCH_LIMIT;
+    private final AtomicLong prefetchedSessions = new AtomicLong();
+    private final AtomicLong prefetchBytes = new AtomicLong();
+
+    CryptoBox(long ptr) {
         this.ptr = ptr;
     }
 
+    private static CryptoBox opened(CryptoBox box, String dir, Durability durability) {
+        box.dir = new File(dir);
+        box.durability = durability;
+        box.nativeBytes.set(BOX_NATIVE_SIZE);
+        TOTAL_BOXES.incrementAndGet();
+        TOTAL_BYTES.addAndGet(BOX_NATIVE_SIZE);
+        return box;
+    }
+
     /**
      * Open a <tt>CryptoBox</tt> that operates on the given directory.
      *
      * The given directory must exist and be writeable.
      *
      * <p>Note: Do not open multiple boxes that operate on the same or
-     * overlapping directories. Doing so results in undefined behaviour.</p>
+     * overlapping directories. Doing so results in undefined behaviour.
+     * Use {@link #openOwned} to rule this out, also across processes.</p>
      *
      * @param dir The root storage directory of the box.
      */
     public static CryptoBox open(String dir) throws CryptoException {
+        return open(dir, Durability.STRICT);
+    }
+
+    /**
+     * Open a <tt>CryptoBox</tt> that operates on the given directory, with
+     * the given durability of session saves.
+     *
+     * @param dir The root storage directory of the box.
+     * @param durability The durability of session saves.
+     * @see #open(String)
+     */
+    public static CryptoBox open(String dir, Durability durability) throws CryptoException {
+        long start = Instrumentation.start();
         synchronized (OPEN_LOCK) {
-            return jniOpen(dir);
+            long acquired = Instrumentation.acquired(start);
+            try {
+                CryptoBox box = opened(NativeBackend.INSTANCE.open(dir), dir, durability);
+                Instrumentation.done(Operation.OPEN, null, 0, 0, start, acquired);
+                return box;
+            } catch (CryptoException e) {
+                Instrumentation.failed(Operation.OPEN, null, 0, e, start, acquired);
+                throw e;
+            }
         }
     }
 
+    /**
+     * Open a <tt>CryptoBox</tt> that operates on the given directory and
+     * take exclusive ownership of the directory.
+     *
+     * <p>Equivalent to <tt>openOwned(dir, Durability.STRICT, timeout, unit)</tt>.</p>
+     *
+     * @see #openOwned(String, Durability, long, TimeUnit)
+     */
+    public static CryptoBox openOwned(String dir, long timeout, TimeUnit unit) throws CryptoException {
+        return openOwned(dir, Durability.STRICT, timeout, unit);
+    }
+
+    /**
+     * Open a <tt>CryptoBox</tt> that operates on the given directory and
+     * take exclusive ownership of the directory, e.g. for distributing
+     * boxes on shared storage among multiple processes or hosts.
+     *
+     * <p>Ownership is held through an advisory lock on a file in the
+     * directory until the box is closed or the owning process exits. All
+     * processes accessing the directory must therefore open it with
+     * <tt>openOwned</tt>, and the shared storage must support file locks.
+     * If the directory is owned by another box, in this or another process,
+     * a {@link CryptoException} with the code
+     * {@link CryptoException.Code#BOX_LOCKED} is thrown once the timeout has
+     * elapsed.</p>
+     *
+     * <p>To move a box between processes, the new owner calls
+     * {@link #requestHandoff} and then waits in <tt>openOwned</tt>. The
+     * current owner, polling {@link #isHandoffRequested}, closes the box
+     * to hand it over.</p>
+     *
+     * @param dir The root storage directory of the box.
+     * @param durability The durability of session saves.
+     * @param timeout The time to wait for the current owner, or 0 to fail fast.
+     * @param unit The unit of <tt>timeout</tt>.
+     */
+    public static CryptoBox openOwned(String dir, Durability durability, long timeout, TimeUnit unit) throws CryptoException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout must be >= 0");
+        }
+        OwnerLock owner = OwnerLock.acquire(new File(dir), unit.toNanos(timeout));
+        try {
+            CryptoBox box = open(dir, durability);
+            synchronized (box.lock) {
+                box.owner = owner;
+            }
+            return box;
+        } catch (CryptoException e) {
+            owner.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Request the ownership of a box directory from the box that currently
+     * owns it.
+     *
+     * @param dir The root storage directory of the box.
+     * @see #openOwned(String, Durability, long, TimeUnit)
+     */
+    public static void requestHandoff(String dir) throws CryptoException {
+        OwnerLock.requestHandoff(new File(dir));
+    }
+
+    /**
+     * Check whether another process requested the ownership of this box
+     * via {@link #requestHandoff}, in which case the box should be closed.
+     * Always <tt>false</tt> for a box not opened with {@link #openOwned}.
+     *
+     * <p>Requests are detected in the background within a fraction of a
+     * second, so this check is cheap and does not wait for the box lock.</p>
+     */
+    public boolean isHandoffRequested() {
+        OwnerLock o = owner;
+        return o != null && o.isHandoffRequested();
+    }
+
     /**
      * Open a <tt>CryptoBox</tt> that operates on the given directory, using
      * an existing external identity.
@@ -98,11 +307,36 @@ final public class CryptoBox {
      * @param mode The desired local identity storage.
      */
     public static CryptoBox openWith(String dir, byte[] id, IdentityMode mode) throws CryptoException {
+        return openWith(dir, id, mode, Durability.STRICT);
+    }
+
+    /**
+     * Open a <tt>CryptoBox</tt> that operates on the given directory, using
+     * an existing external identity, with the given durability of session saves.
+     *
+     * @param dir The root storage directory of the box.
+     * @param id The serialised external identity to use.
+     * @param mode The desired local identity storage.
+     * @param durability The durability of session saves.
+     * @see #openWith(String, byte[], IdentityMode)
+     */
+    public static CryptoBox openWith(String dir, byte[] id, IdentityMode mode, Durability durability) throws CryptoException {
+        int m;
+        switch (mode) {
+            case COMPLETE: m = 0; break;
+            case PUBLIC:   m = 1; break;
+            default:       throw new IllegalStateException("Unexpected IdentityMode");
+        }
+        long start = Instrumentation.start();
         synchronized (OPEN_LOCK) {
-            switch (mode) {
-                case COMPLETE: return jniOpenWith(dir, id, 0);
-                case PUBLIC:   return jniOpenWith(dir, id, 1);
-                default:       throw new IllegalStateException("Unexpected IdentityMode");
+            long acquired = Instrumentation.acquired(start);
+            try {
+                CryptoBox box = opened(NativeBackend.INSTANCE.openWith(dir, id, m), dir, durability);
+                Instrumentation.done(Operation.OPEN, null, id.length, 0, start, acquired);
+                return box;
+            } catch (CryptoException e) {
+                Instrumentation.failed(Operation.OPEN, null, id.length, e, start, acquired);
+                throw e;
             }
         }
     }
@@ -113,7 +347,90 @@ final public class CryptoBox {
      * @return The HEX encoded fingerprint.
      */
     public static byte[] getFingerprintFromPrekey(PreKey preKey) throws CryptoException {
-        return jniGetFingerprintFromPrekey(preKey.data);
+        return NativeBackend.INSTANCE.getFingerprintFromPrekey(preKey.data);
+    }
+
+    /**
+     * Inspect the unencrypted header of an encrypted message, without
+     * decrypting it.
+     *
+     * <p>This neither requires a box nor takes any locks, so that messages
+     * can be routed to {@link #initSessionFromMessage} or
+     * {@link CryptoSession#decrypt} and sharded by sender up front. Note that
+     * the header is not authenticated until the message is decrypted.</p>
+     *
+     * <p>If the message is malformed, a {@link CryptoException} is thrown
+     * with the code {@link CryptoException.Code#DECODE_ERROR}.</p>
+     *
+     * @param message The encrypted message.
+     */
+    public static MessageInfo inspectMessage(byte[] message) throws CryptoException {
+        CborReader envelope = new CborReader(message);
+        long version = -1;
+        byte[] body  = null;
+        for (int i = envelope.map(); i > 0; --i) {
+            switch ((int) envelope.uint(0xFF)) {
+                case 0:  version = envelope.uint(0xFF); break;
+                case 2:  body = envelope.bytes(); break;
+                default: envelope.skip();
+            }
+        }
+        if (version != 1 || body == null) {
+            throw new CryptoException(CryptoException.Code.DECODE_ERROR);
+        }
+        CborReader msg = new CborReader(body);
+        switch ((int) msg.uint(0xFF)) {
+            case 1:
+                return new MessageInfo(MessageInfo.Type.CIPHER, -1, null);
+            case 2:
+                int preKeyId = -1;
+                byte[] identity = null;
+                for (int i = msg.map(); i > 0; --i) {
+                    switch ((int) msg.uint(0xFF)) {
+                        case 0:  preKeyId = (int) msg.uint(0xFFFF); break;
+                        case 2:  identity = readIdentityKey(msg); break;
+                        default: msg.skip();
+                    }
+                }
+                if (preKeyId == -1 || identity == null) {
+                    throw new CryptoException(CryptoException.Code.DECODE_ERROR);
+                }
+                return new MessageInfo(MessageInfo.Type.PREKEY, preKeyId, hex(identity));
+            default:
+                throw new CryptoException(CryptoException.Code.DECODE_ERROR);
+        }
+    }
+
+    /** Read an identity key, i.e. <tt>{0: {0: bytes}}</tt>, returning the public key. */
+    private static byte[] readIdentityKey(CborReader r) throws CryptoException {
+        byte[] key = null;
+        for (int i = r.map(); i > 0; --i) {
+            if (r.uint(0xFF) != 0) {
+                r.skip();
+                continue;
+            }
+            for (int j = r.map(); j > 0; --j) {
+                if (r.uint(0xFF) == 0) {
+                    key = r.bytes();
+                } else {
+                    r.skip();
+                }
+            }
+        }
+        if (key == null || key.length != 32) {
+            throw new CryptoException(CryptoException.Code.DECODE_ERROR);
+        }
+        return key;
+    }
+
+    private static byte[] hex(byte[] bytes) {
+        final byte[] digits = "0123456789abcdef".getBytes();
+        byte[] hex = new byte[bytes.length * 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            hex[2 * i]     = digits[(bytes[i] >> 4) & 0xF];
+            hex[2 * i + 1] = digits[bytes[i] & 0xF];
+        }
+        return hex;
     }
 
     /**
@@ -126,18 +443,27 @@ final public class CryptoBox {
     public byte[] copyIdentity() throws CryptoException {
         synchronized (lock) {
             errorIfClosed();
-            return jniCopyIdentity(this.ptr);
+            return NativeBackend.INSTANCE.copyIdentity(this.ptr);
         }
     }
 
     /**
      * Get the local fingerprint as a hex-encoded byte array.
+     *
+     * <p>The fingerprint is cached after the first call, so that later
+     * calls do not wait for the box lock.</p>
      */
     public byte[] getLocalFingerprint() throws CryptoException {
-        synchronized (lock) {
-            errorIfClosed();
-            return jniGetLocalFingerprint(this.ptr);
+        errorIfClosed();
+        byte[] fp = localFingerprint;
+        if (fp == null) {
+            synchronized (lock) {
+                errorIfClosed();
+                fp = NativeBackend.INSTANCE.getLocalFingerprint(this.ptr);
+                localFingerprint = fp;
+            }
         }
+        return fp.clone();
     }
 
     /**
@@ -146,9 +472,20 @@ final public class CryptoBox {
      * The last prekey is never removed as a result of {@link #initSessionFromMessage}.
      */
     public PreKey newLastPreKey() throws CryptoException {
+        long start = Instrumentation.start();
         synchronized (lock) {
+            long acquired = Instrumentation.acquired(start);
             errorIfClosed();
-            return jniNewLastPreKey(this.ptr);
+            PreKey pk;
+            try {
+                pk = NativeBackend.INSTANCE.newLastPreKey(this.ptr);
+            } catch (CryptoException e) {
+                Instrumentation.failed(Operation.NEW_PREKEYS, null, 0, e, start, acquired);
+                throw e;
+            }
+            preKeyWritten(pk);
+            Instrumentation.done(Operation.NEW_PREKEYS, null, 0, pk.data.length, start, acquired);
+            return pk;
         }
     }
 
@@ -171,9 +508,24 @@ final public class CryptoBox {
         if (num < 1 || num > MAX_PREKEY_ID) {
             throw new IllegalArgumentException("num must be >= 1 and <= " + MAX_PREKEY_ID);
         }
+        long t0 = Instrumentation.start();
         synchronized (lock) {
+            long acquired = Instrumentation.acquired(t0);
             errorIfClosed();
-            return jniNewPreKeys(this.ptr, start, num);
+            PreKey[] pks;
+            try {
+                pks = NativeBackend.INSTANCE.newPreKeys(this.ptr, start, num);
+            } catch (CryptoException e) {
+                Instrumentation.failed(Operation.NEW_PREKEYS, null, 0, e, t0, acquired);
+                throw e;
+            }
+            int size = 0;
+            for (PreKey pk : pks) {
+                preKeyWritten(pk);
+                size += pk.data.length;
+            }
+            Instrumentation.done(Operation.NEW_PREKEYS, null, 0, size, t0, acquired);
+            return pks;
         }
     }
 
@@ -187,16 +539,152 @@ final public class CryptoBox {
      * @param prekey The prekey of the peer.
      */
     public CryptoSession initSessionFromPreKey(String sid, PreKey prekey) throws CryptoException {
+        long start = Instrumentation.start();
+        try {
+            synchronized (lock) {
+                long acquired = Instrumentation.acquired(start);
+                errorIfClosed();
+                CryptoSession sess = sessions.get(sid);
+                if (sess != null) {
+                    return sess;
+                }
+                try {
+                    sess = NativeBackend.INSTANCE.initSessionFromPreKey(this.ptr, sid, prekey.data);
+                } catch (CryptoException e) {
+                    Instrumentation.failed(Operation.INIT_FROM_PREKEY, sid, prekey.data.length, e, start, acquired);
+                    throw e;
+                }
+                sess.markDirty();
+                register(sess);
+                Instrumentation.done(Operation.INIT_FROM_PREKEY, sid, prekey.data.length, 0, start, acquired);
+                return sess;
+            }
+        } finally {
+            evict();
+        }
+    }
+
+    /**
+     * Initialise many {@link CryptoSession}s using the prekeys of peers.
+     *
+     * <p>Equivalent to <tt>initSessionsFromPreKeys(prekeys, null)</tt>.</p>
+     *
+     * @see #initSessionsFromPreKeys(Map, byte[])
+     */
+    public Map<String, SessionResult> initSessionsFromPreKeys(Map<String, PreKey> prekeys) {
+        return initSessionsFromPreKeys(prekeys, null);
+    }
+
+    /**
+     * Initialise many {@link CryptoSession}s using the prekeys of peers and
+     * optionally encrypt a first message with each of them, e.g. when
+     * starting a conversation with a large group.
+     *
+     * <p>Equivalent to calling {@link #initSessionFromPreKey} and
+     * {@link CryptoSession#encrypt} for every entry, except that all
+     * sessions are initialised with a single acquisition of the box lock and
+     * a single call into native code, and the first messages are encrypted
+     * in parallel afterwards, without holding the box lock. A failure of one
+     * session does not affect the others; the outcome of every session is
+     * reported individually.</p>
+     *
+     * <p>Note: With a native memory budget smaller than the batch, sessions
+     * initialised early in the batch may already have been saved and closed
+     * by the time this method returns.</p>
+     *
+     * @param prekeys The prekeys of the peers, by ID of the new session.
+     *                Neither IDs nor prekeys may be <tt>null</tt>.
+     * @param firstMessage The plaintext to encrypt with every session, or <tt>null</tt>.
+     * @return The outcome for every session ID, in the iteration order of <tt>prekeys</tt>.
+     */
+    public Map<String, SessionResult> initSessionsFromPreKeys(Map<String, PreKey> prekeys, final byte[] firstMessage) {
+        int num = prekeys.size();
+        String[] sids = new String[num];
+        byte[][] data = new byte[num][];
+        int n = 0;
+        for (Map.Entry<String, PreKey> e : prekeys.entrySet()) {
+            // Checked here, since native code cannot handle nulls.
+            if (e.getKey() == null || e.getValue() == null) {
+                throw new IllegalArgumentException("prekeys must not contain null session IDs or prekeys");
+            }
+            sids[n] = e.getKey();
+            data[n] = e.getValue().data;
+            ++n;
+        }
+
+        final CryptoSession[] sess     = new CryptoSession[num];
+        final byte[][] messages        = new byte[num][];
+        final CryptoException[] errors = new CryptoException[num];
+
+        long start = Instrumentation.start();
         synchronized (lock) {
+            long acquired = Instrumentation.acquired(start);
             errorIfClosed();
-            CryptoSession sess = sessions.get(sid);
-            if (sess != null) {
-                return sess;
+
+            // Sessions that are already loaded are returned as they are.
+            List<Integer> fresh = new ArrayList<Integer>();
+            for (int i = 0; i < num; ++i) {
+                sess[i] = sessions.get(sids[i]);
+                if (sess[i] == null) {
+                    fresh.add(i);
+                }
+            }
+
+            String[] freshSids = new String[fresh.size()];
+            byte[][] freshData = new byte[fresh.size()][];
+            for (int k = 0; k < fresh.size(); ++k) {
+                freshSids[k] = sids[fresh.get(k)];
+                freshData[k] = data[fresh.get(k)];
+            }
+            int[] codes = new int[fresh.size()];
+            CryptoSession[] created = NativeBackend.INSTANCE.initSessionsFromPreKeys(this.ptr, freshSids, freshData, codes);
+            long end = Instrumentation.end(start);
+
+            // Every session is reported with its share of the time of the batch.
+            for (int k = 0; k < created.length; ++k) {
+                int i = fresh.get(k);
+                if (created[k] != null) {
+                    sess[i] = created[k];
+                    sess[i].markDirty();
+                    register(sess[i]);
+                    Instrumentation.doneInBatch(Operation.INIT_FROM_PREKEY, sids[i], data[i].length, 0, start, acquired, end, created.length);
+                } else {
+                    errors[i] = new CryptoException(CryptoException.fromNativeCode(codes[k]));
+                    Instrumentation.failedInBatch(Operation.INIT_FROM_PREKEY, sids[i], data[i].length, errors[i], start, acquired, end, created.length);
+                }
             }
-            sess = jniInitSessionFromPreKey(this.ptr, sid, prekey.data);
-            sessions.put(sess.id, sess);
-            return sess;
         }
+
+        if (firstMessage != null) {
+            List<Runnable> tasks = new ArrayList<Runnable>();
+            for (int i = 0; i < num; ++i) {
+                if (sess[i] == null) {
+                    continue;
+                }
+                final int index = i;
+                tasks.add(new Runnable() {
+                    @Override public void run() {
+                        try {
+                            messages[index] = sess[index].encrypt(firstMessage);
+                        } catch (CryptoException e) {
+                            errors[index] = e;
+                        } catch (IllegalStateException e) {
+                            // Closed in the meantime due to the memory budget.
+                            errors[index] = new CryptoException(CryptoException.Code.SESSION_NOT_FOUND);
+                        }
+                    }
+                });
+            }
+            Workers.runAll(tasks);
+        }
+        // New sessions are only closed for the budget after their first messages.
+        evict();
+
+        Map<String, SessionResult> results = new LinkedHashMap<String, SessionResult>();
+        for (int i = 0; i < num; ++i) {
+            results.put(sids[i], new SessionResult(sess[i], messages[i], errors[i]));
+        }
+        return Collections.unmodifiableMap(results);
     }
 
     /**
@@ -208,15 +696,128 @@ final public class CryptoBox {
      * @param message The encrypted (prekey) message.
      */
     public SessionMessage initSessionFromMessage(String sid, byte[] message) throws CryptoException {
-        synchronized (lock) {
-            errorIfClosed();
-            CryptoSession sess = sessions.get(sid);
-            if (sess != null) {
-                return new SessionMessage(sess, sess.decrypt(message));
+        long start = Instrumentation.start();
+        try {
+            synchronized (lock) {
+                long acquired = Instrumentation.acquired(start);
+                errorIfClosed();
+                CryptoSession sess = sessions.get(sid);
+                if (sess != null) {
+                    return new SessionMessage(sess, sess.decrypt(message));
+                }
+                SessionMessage smsg;
+                try {
+                    smsg = NativeBackend.INSTANCE.initSessionFromMessage(this.ptr, sid, message);
+                } catch (CryptoException e) {
+                    Instrumentation.failed(Operation.INIT_FROM_MESSAGE, sid, message.length, e, start, acquired);
+                    throw e;
+                }
+                smsg.getSession().markDirty();
+                register(smsg.getSession());
+                if (compressed.contains(sid)) {
+                    smsg = new SessionMessage(smsg.getSession(), Compression.decode(smsg.getMessage()));
+                }
+                Instrumentation.done(Operation.INIT_FROM_MESSAGE, sid, message.length, smsg.getMessage().length, start, acquired);
+                return smsg;
+            }
+        } finally {
+            evict();
+        }
+    }
+
+    /**
+     * Encrypt a payload once for a group of recipients.
+     *
+     * <p>The payload is encrypted a single time under a fresh symmetric key
+     * and only that key is encrypted with every recipient session, so that
+     * the cost of a broadcast no longer grows with the number of recipients
+     * times the size of the payload. The shared payload and the key envelope
+     * of a recipient are decrypted with {@link #decryptBroadcast} or, for a
+     * recipient that has no session yet, {@link #initSessionFromBroadcast}.</p>
+     *
+     * <p>Every envelope holds the key together with the SHA-256 hash of the
+     * encrypted payload, so that a recipient, who knows the key, cannot
+     * pair another recipient's envelope with a forged payload.</p>
+     *
+     * @param recipients The sessions of all recipients, which must belong to this box.
+     * @param payload The plaintext payload.
+     */
+    public BroadcastMessage encryptBroadcast(Collection<CryptoSession> recipients, byte[] payload) throws CryptoException {
+        errorIfClosed();
+        for (CryptoSession sess : recipients) {
+            if (sess.box != this) {
+                throw new IllegalArgumentException("recipients must be sessions of this box");
+            }
+        }
+        byte[] key = StreamCipher.newKey();
+        byte[] envelope = new byte[StreamCipher.KEY_LEN + BROADCAST_HASH_LEN];
+        try {
+            byte[] cipher = StreamCipher.seal(key, payload);
+            System.arraycopy(key, 0, envelope, 0, StreamCipher.KEY_LEN);
+            System.arraycopy(sha256(cipher), 0, envelope, StreamCipher.KEY_LEN, BROADCAST_HASH_LEN);
+            Map<String, byte[]> envelopes = new LinkedHashMap<String, byte[]>();
+            for (CryptoSession sess : recipients) {
+                envelopes.put(sess.id, sess.encrypt(envelope));
             }
-            SessionMessage smsg = jniInitSessionFromMessage(this.ptr, sid, message);
-            sessions.put(smsg.getSession().id, smsg.getSession());
-            return smsg;
+            return new BroadcastMessage(cipher, Collections.unmodifiableMap(envelopes));
+        } finally {
+            Arrays.fill(key, (byte) 0);
+            Arrays.fill(envelope, (byte) 0);
+        }
+    }
+
+    /**
+     * Decrypt a payload produced by {@link #encryptBroadcast} with an
+     * existing session.
+     *
+     * @param sess The session with the sender.
+     * @param envelope The encrypted payload key for this recipient.
+     * @param payload The shared encrypted payload.
+     * @return A byte array containing the plaintext payload.
+     */
+    public byte[] decryptBroadcast(CryptoSession sess, byte[] envelope, byte[] payload) throws CryptoException {
+        return openBroadcast(sess.decrypt(envelope), payload);
+    }
+
+    /**
+     * Initialise a {@link CryptoSession} using the key envelope of a payload
+     * produced by {@link #encryptBroadcast} and decrypt the payload.
+     *
+     * @param sid The ID of the new session.
+     * @param envelope The encrypted (prekey) payload key for this recipient.
+     * @param payload The shared encrypted payload.
+     * @see #initSessionFromMessage
+     */
+    public SessionMessage initSessionFromBroadcast(String sid, byte[] envelope, byte[] payload) throws CryptoException {
+        SessionMessage smsg = initSessionFromMessage(sid, envelope);
+        return new SessionMessage(smsg.getSession(), openBroadcast(smsg.getMessage(), payload));
+    }
+
+    private static byte[] openBroadcast(byte[] envelope, byte[] payload) throws CryptoException {
+        byte[] key = null;
+        try {
+            if (envelope.length != StreamCipher.KEY_LEN + BROADCAST_HASH_LEN) {
+                throw new CryptoException(CryptoException.Code.DECODE_ERROR);
+            }
+            byte[] hash = Arrays.copyOfRange(envelope, StreamCipher.KEY_LEN, envelope.length);
+            if (!MessageDigest.isEqual(hash, sha256(payload))) {
+                throw new CryptoException(CryptoException.Code.INVALID_SIGNATURE);
+            }
+            key = Arrays.copyOf(envelope, StreamCipher.KEY_LEN);
+            return StreamCipher.open(key, payload);
+        } finally {
+            Arrays.fill(envelope, (byte) 0);
+            if (key != null) {
+                Arrays.fill(key, (byte) 0);
+            }
+        }
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
         }
     }
 
@@ -229,26 +830,55 @@ final public class CryptoBox {
      * @param sid The ID of the session to get.
      */
     public CryptoSession getSession(String sid) throws CryptoException {
-        synchronized (lock) {
-            errorIfClosed();
-            CryptoSession sess = sessions.get(sid);
-            if (sess == null) {
-                sess = jniLoadSession(this.ptr, sid);
-                sessions.put(sid, sess);
+        long start = Instrumentation.start();
+        try {
+            synchronized (lock) {
+                long acquired = Instrumentation.acquired(start);
+                errorIfClosed();
+                CryptoSession sess = sessions.get(sid);
+                if (sess == null) {
+                    sess = load(sid, start, acquired);
+                } else {
+                    sess.touch();
+                }
+                return sess;
             }
-            return sess;
+        } finally {
+            evict();
         }
     }
 
+    /** Load a session from storage into the pool. Must be called with the box lock held. */
+    private CryptoSession load(String sid, long start, long acquired) throws CryptoException {
+        CryptoSession sess;
+        try {
+            sess = NativeBackend.INSTANCE.loadSession(this.ptr, sid);
+        } catch (CryptoException e) {
+            if (e.code == CryptoException.Code.SESSION_NOT_FOUND && index != null) {
+                index.remove(sid);
+            }
+            Instrumentation.failed(Operation.LOAD, sid, 0, e, start, acquired);
+            throw e;
+        }
+        sess.stored = true;
+        register(sess);
+        Instrumentation.done(Operation.LOAD, sid, 0, 0, start, acquired);
+        return sess;
+    }
+
     /**
      * Try to get an existing session by ID.
      *
      * <p>Equivalent to {@link #getSession}, except that <tt>null</tt> is
-     * returned if the session does not exist.</p>
+     * returned if the session does not exist. Sessions that are not known
+     * to {@link #hasSession} are not looked up in storage.</p>
      *
      * @param sid The ID of the session to get.
      */
     public CryptoSession tryGetSession(String sid) throws CryptoException {
+        if (!hasSession(sid)) {
+            return null;
+        }
         try { return getSession(sid); }
         catch (CryptoException ex) {
             if (ex.code == CryptoException.Code.SESSION_NOT_FOUND) {
@@ -258,6 +888,155 @@ final public class CryptoBox {
         }
     }
 
+    /**
+     * Check whether a session exists, i.e. is loaded or stored, without
+     * loading it.
+     *
+     * <p>The IDs of all stored sessions are read from storage once, on the
+     * first call, and are then kept in memory and up to date with sessions
+     * being initialised and deleted through this box, so that subsequent
+     * calls do not access storage and do not take the box lock. Sessions
+     * added to or removed from the storage directory by other means are
+     * not noticed.</p>
+     *
+     * @param sid The ID of the session.
+     */
+    public boolean hasSession(String sid) {
+        errorIfClosed();
+        Set<String> ids = index;
+        if (ids == null) {
+            synchronized (lock) {
+                errorIfClosed();
+                if (index == null) {
+                    ids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                    ids.addAll(Arrays.asList(list(new File(dir, "sessions"))));
+                    ids.addAll(sessions.keySet());
+                    index = ids;
+                }
+                ids = index;
+            }
+        }
+        return ids.contains(sid);
+    }
+
+    /**
+     * Load sessions that are about to be used, e.g. those of messages
+     * further back in an inbound queue, in the background.
+     *
+     * <p>Each session is read from storage on a small pool of I/O threads
+     * shared by all boxes and added to this box, so that a later
+     * {@link #getSession} does not wait for storage. The file of the
+     * session is read once without holding the box lock, so the box lock is
+     * only held while the session is decoded from the page cache.</p>
+     *
+     * <p>Sessions that are loaded, already being prefetched or unknown to
+     * {@link #hasSession} are skipped. At most {@link #setPrefetchLimit}
+     * sessions are being prefetched at a time, and sessions are not
+     * prefetched if they would exceed the native memory budget of the box,
+     * estimated from the size of their files and checked again right before
+     * loading, so that prefetching never evicts a session in use. The remaining IDs
+     * are ignored. Errors are not reported; they recur on first use.</p>
+     *
+     * @param sids The IDs of the sessions, in the order of their expected use.
+     * @return The number of sessions scheduled to be loaded.
+     */
+    public int prefetchSessions(Collection<String> sids) {
+        int scheduled = 0;
+        synchronized (lock) {
+            errorIfClosed();
+            for (final String sid : sids) {
+                if (prefetching.size() >= prefetchLimit) {
+                    break;
+                }
+                if (sessions.containsKey(sid) || prefetching.contains(sid) || !hasSession(sid)) {
+                    continue;
+                }
+                final long size = nativeSize(sid);
+                if (nativeBudget != 0 && nativeBytes.get() + prefetchBytes.get() + size > nativeBudget) {
+                    break;
+                }
+                prefetching.add(sid);
+                prefetchBytes.addAndGet(size);
+                Prefetcher.execute(new Runnable() {
+                    @Override public void run() {
+                        prefetch(sid, size);
+                    }
+                });
+                ++scheduled;
+            }
+        }
+        return scheduled;
+    }
+
+    /**
+     * Load a session scheduled by {@link #prefetchSessions}, unless it has
+     * been loaded meanwhile or would no longer fit into the native memory
+     * budget.
+     *
+     * @param reserved The native size reserved for the session when it was scheduled.
+     */
+    private void prefetch(String sid, long reserved) {
+        try {
+            readFully(sessionFile(sid));
+            long start = Instrumentation.start();
+            synchronized (lock) {
+                long acquired = Instrumentation.acquired(start);
+                if (ptr == 0 || sessions.containsKey(sid)) {
+                    return;
+                }
+                // The budget may have been lowered or used up by other sessions since.
+                if (nativeBudget != 0 && nativeBytes.get() + nativeSize(sid) > nativeBudget) {
+                    return;
+                }
+                load(sid, start, acquired);
+                prefetchedSessions.incrementAndGet();
+            }
+        } catch (CryptoException e) {
+            // Reported again by getSession.
+        } finally {
+            prefetchBytes.addAndGet(-reserved);
+            prefetching.remove(sid);
+            evict();
+        }
+    }
+
+    /** Read and discard a file, so that it is in the page cache. */
+    private static void readFully(File f) {
+        try {
+            FileInputStream in = new FileInputStream(f);
+            try {
+                byte[] buf = new byte[4096];
+                while (in.read(buf) != -1) {
+                    // Discard
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // Loading the session reports any errors.
+        }
+    }
+
+    /**
+     * Set the maximum number of sessions being prefetched at a time.
+     *
+     * @param limit The limit, or <tt>0</tt> to disable prefetching.
+     * @see #DEFAULT_PREFETCH_LIMIT
+     */
+    public void setPrefetchLimit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must be >= 0");
+        }
+        prefetchLimit = limit;
+    }
+
+    /**
+     * Get the total number of sessions loaded by {@link #prefetchSessions}.
+     */
+    public long getPrefetchedSessionCount() {
+        return prefetchedSessions.get();
+    }
+
     /**
      * Close a session.
      *
@@ -272,8 +1051,11 @@ final public class CryptoBox {
     public void closeSession(CryptoSession sess) {
         synchronized (lock) {
             errorIfClosed();
-            sessions.remove(sess.id);
-            sess.close();
+            if (sessions.get(sess.id) == sess) {
+                unregister(sess);
+            } else {
+                sess.close();
+            }
         }
     }
 
@@ -285,10 +1067,9 @@ final public class CryptoBox {
     public void closeAllSessions() {
         synchronized (lock) {
             errorIfClosed();
-            for (CryptoSession s : sessions.values()) {
-                s.close();
+            for (CryptoSession s : new ArrayList<CryptoSession>(sessions.values())) {
+                unregister(s);
             }
-            sessions.clear();
         }
     }
 
@@ -304,15 +1085,525 @@ final public class CryptoBox {
      * @param sid The ID of the session to delete.
      */
     public void deleteSession(String sid) throws CryptoException {
+        long start = Instrumentation.start();
         synchronized (lock) {
+            long acquired = Instrumentation.acquired(start);
             errorIfClosed();
-            CryptoSession sess = sessions.get(sid);
-            if (sess != null) {
-                sessions.remove(sid);
-                sess.close();
+            delete(sid, start, acquired);
+        }
+    }
+
+    /**
+     * Delete multiple sessions.
+     *
+     * <p>Equivalent to calling {@link #deleteSession} for every ID, except
+     * that the box lock is only held for a small batch of sessions at a
+     * time, so that other operations on the box can proceed in between.
+     * Deletion continues past failures; the first error is rethrown once
+     * all sessions have been processed.</p>
+     *
+     * @param sids The IDs of the sessions to delete.
+     */
+    public void deleteSessions(Collection<String> sids) throws CryptoException {
+        deleteBatched(new ArrayList<String>(sids), false);
+    }
+
+    /**
+     * Delete all stored sessions that have not been written to storage since
+     * the given time, in a single pass over the storage directory.
+     *
+     * <p>Sessions that are currently loaded are considered in use and are
+     * not deleted. As with {@link #deleteSessions}, the box lock is only held
+     * for a small batch of sessions at a time.</p>
+     *
+     * @param timestamp The cut-off time, in milliseconds since the epoch.
+     * @return The number of sessions deleted.
+     */
+    public int deleteSessionsOlderThan(long timestamp) throws CryptoException {
+        errorIfClosed();
+        List<String> stale = new ArrayList<String>();
+        for (SessionInfo info : listSessions()) {
+            if (info.getLastModified() < timestamp) {
+                stale.add(info.getId());
             }
-            jniDeleteSession(this.ptr, sid);
         }
+        return deleteBatched(stale, true);
+    }
+
+    /**
+     * List the sessions stored by this box.
+     *
+     * <p>The session directory is read when iteration starts; the
+     * modification time of every session is only looked up as the iteration
+     * reaches it. Sessions deleted in the meantime are skipped. No box lock
+     * is held while iterating.</p>
+     *
+     * <p>Note: Sessions that have been initialised but not yet saved are
+     * not listed.</p>
+     */
+    public Iterable<SessionInfo> listSessions() {
+        errorIfClosed();
+        final File sessionDir = new File(dir, "sessions");
+        return new Iterable<SessionInfo>() {
+            @Override public Iterator<SessionInfo> iterator() {
+                final String[] names = sessionDir.list();
+                return new Iterator<SessionInfo>() {
+                    private int index = 0;
+                    private SessionInfo next = advance();
+
+                    private SessionInfo advance() {
+                        while (names != null && index < names.length) {
+                            String sid = names[index++];
+                            long mtime = new File(sessionDir, sid).lastModified();
+                            if (mtime != 0) {
+                                return new SessionInfo(sid, mtime);
+                            }
+                        }
+                        return null;
+                    }
+
+                    @Override public boolean hasNext() {
+                        return next != null;
+                    }
+
+                    @Override public SessionInfo next() {
+                        if (next == null) {
+                            throw new NoSuchElementException();
+                        }
+                        SessionInfo info = next;
+                        next = advance();
+                        return info;
+                    }
+
+                    @Override public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    /** Delete sessions, holding the box lock for at most {@link #DELETE_BATCH} of them at a time. */
+    private int deleteBatched(List<String> sids, boolean skipLoaded) throws CryptoException {
+        CryptoException error = null;
+        int deleted = 0;
+        for (int i = 0; i < sids.size(); i += DELETE_BATCH) {
+            List<String> batch = sids.subList(i, Math.min(sids.size(), i + DELETE_BATCH));
+            long start = Instrumentation.start();
+            synchronized (lock) {
+                long acquired = Instrumentation.acquired(start);
+                errorIfClosed();
+                for (String sid : batch) {
+                    if (skipLoaded && sessions.containsKey(sid)) {
+                        continue;
+                    }
+                    try {
+                        delete(sid, start, acquired);
+                        ++deleted;
+                    } catch (CryptoException e) {
+                        if (error == null) {
+                            error = e;
+                        }
+                    }
+                    // Only the first deletion of a batch waited for the lock.
+                    start = acquired = Instrumentation.start();
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        return deleted;
+    }
+
+    /**
+     * Close and delete a session, reporting an operation started at <tt>start</tt>
+     * that acquired the lock at <tt>acquired</tt>. Must be called with the box lock held.
+     */
+    private void delete(String sid, long start, long acquired) throws CryptoException {
+        CryptoSession sess = sessions.get(sid);
+        if (sess != null) {
+            // The file is about to be deleted, so a deferred save is not written.
+            unregister(sess, false);
+        }
+        try {
+            NativeBackend.INSTANCE.deleteSession(this.ptr, sid);
+        } catch (CryptoException e) {
+            Instrumentation.failed(Operation.DELETE, sid, 0, e, start, acquired);
+            throw e;
+        }
+        if (index != null) {
+            index.remove(sid);
+        }
+        Instrumentation.done(Operation.DELETE, sid, 0, 0, start, acquired);
+    }
+
+    /**
+     * Copy the storage directory of this box to another directory while the
+     * box remains in use.
+     *
+     * <p>Equivalent to <tt>snapshot(target, 0)</tt>.</p>
+     *
+     * @see #snapshot(String, long)
+     */
+    public void snapshot(String target) throws CryptoException, IOException {
+        snapshot(target, 0);
+    }
+
+    /**
+     * Copy the storage directory of this box to another directory while the
+     * box remains in use, e.g. for backups. The copy can be opened like any
+     * other box.
+     *
+     * <p>The identity is copied first, then the prekeys and finally the
+     * sessions. Sessions are copied as last written to storage: changes that
+     * have not been saved, or whose save has been deferred due to the
+     * {@link Durability} of this box, are not part of the copy, and the
+     * snapshot never writes them. Each file is copied while no write to it
+     * can happen, holding the box lock or, for a loaded session, only the
+     * lock of that session, so that other sessions can be used in the
+     * meantime. Prekeys
+     * consumed by a new session during the snapshot are thus either still
+     * part of the copy or accounted for by the copy of that session.</p>
+     *
+     * <p>No lock is held while waiting for the throughput limit.</p>
+     *
+     * @param target The directory to copy to. It is created if it does not
+     *               exist and must otherwise be empty.
+     * @param maxBytesPerSecond The maximum copy throughput, or 0 for no limit.
+     */
+    public void snapshot(String target, long maxBytesPerSecond) throws CryptoException, IOException {
+        if (maxBytesPerSecond < 0) {
+            throw new IllegalArgumentException("maxBytesPerSecond must be >= 0");
+        }
+        File dst = new File(target);
+        String[] existing = dst.list();
+        if (existing != null && existing.length > 0) {
+            throw new IllegalArgumentException("target must be empty");
+        }
+        if (!dst.isDirectory() && !dst.mkdirs()) {
+            throw new IOException("Failed to create " + dst);
+        }
+        Throttle throttle = new Throttle(maxBytesPerSecond);
+
+        // Identity and everything else of the box, which is small.
+        Set<String> sids = new TreeSet<String>();
+        synchronized (lock) {
+            errorIfClosed();
+            for (String name : list(dir)) {
+                if (!name.equals("sessions") && !name.equals("prekeys")
+                        && !name.equals(OwnerLock.LOCK_FILE) && !name.equals(OwnerLock.HANDOFF_FILE)) {
+                    throttle.add(copy(new File(dir, name), new File(dst, name)));
+                }
+            }
+            sids.addAll(sessions.keySet());
+        }
+        throttle.await();
+
+        // Prekeys only change with the box lock held.
+        File prekeys = new File(dir, "prekeys");
+        mkdir(new File(dst, "prekeys"));
+        for (String name : list(prekeys)) {
+            synchronized (lock) {
+                errorIfClosed();
+                throttle.add(copy(new File(prekeys, name), new File(new File(dst, "prekeys"), name)));
+            }
+            throttle.await();
+        }
+
+        // Sessions are written with the session lock held and only loaded with the box lock held.
+        File sessionDir = new File(dst, "sessions");
+        mkdir(sessionDir);
+        sids.addAll(Arrays.asList(list(new File(dir, "sessions"))));
+        for (String sid : sids) {
+            long n = -1;
+            while (n < 0) {
+                CryptoSession sess;
+                synchronized (lock) {
+                    errorIfClosed();
+                    sess = sessions.get(sid);
+                    if (sess == null || sess.isClosed()) {
+                        n = copy(sessionFile(sid), new File(sessionDir, sid));
+                        sess = null;
+                    }
+                }
+                if (sess != null) {
+                    n = sess.snapshot(sessionFile(sid), new File(sessionDir, sid));
+                }
+            }
+            throttle.add(n);
+            throttle.await();
+        }
+    }
+
+    /**
+     * Enable or disable the compressed encoding of plaintexts for the
+     * session with the given ID.
+     *
+     * <p>With compression enabled, plaintexts of at least the compression
+     * threshold (see {@link #setCompressionThreshold}) are compressed before
+     * being encrypted, if that makes them smaller, and every plaintext is
+     * prefixed with a small header. Decryption, including
+     * {@link #initSessionFromMessage}, expects that header and decompresses
+     * accordingly. A plaintext that cannot be decoded results in a
+     * {@link CryptoException} with the code
+     * {@link CryptoException.Code#DECODE_ERROR}, after the message has been
+     * consumed by the session.</p>
+     *
+     * <p>Both peers must agree on the use of compression, e.g. through an
+     * application-level capability exchange; peers that have not agreed on it
+     * keep exchanging plain messages. The setting is not persisted and
+     * needs to be made again whenever the box is opened.</p>
+     *
+     * @param sid The ID of the session.
+     * @param enabled Whether to use the compressed encoding.
+     */
+    public void setCompressionEnabled(String sid, boolean enabled) {
+        if (enabled) {
+            compressed.add(sid);
+        } else {
+            compressed.remove(sid);
+        }
+    }
+
+    /**
+     * Check whether the compressed encoding of plaintexts is enabled for the
+     * session with the given ID.
+     *
+     * @see #setCompressionEnabled
+     */
+    public boolean isCompressionEnabled(String sid) {
+        return compressed.contains(sid);
+    }
+
+    /**
+     * Set the minimum size of plaintexts that are compressed for sessions
+     * with compression enabled. Smaller plaintexts are sent uncompressed,
+     * with the header only.
+     *
+     * @param bytes The threshold in bytes (>= 0), by default
+     *              {@link #DEFAULT_COMPRESSION_THRESHOLD}.
+     * @see #setCompressionEnabled
+     */
+    public void setCompressionThreshold(int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("bytes must be >= 0");
+        }
+        compressionThreshold = bytes;
+    }
+
+    /** Encode a plaintext for the given session, according to its compression setting. */
+    byte[] encodePlaintext(String sid, byte[] plaintext) {
+        return compressed.contains(sid) ? Compression.encode(plaintext, compressionThreshold) : plaintext;
+    }
+
+    /** Decode a plaintext of the given session, according to its compression setting. */
+    byte[] decodePlaintext(String sid, byte[] plaintext) throws CryptoException {
+        return compressed.contains(sid) ? Compression.decode(plaintext) : plaintext;
+    }
+
+    /**
+     * Set the listener to notify about the operations of all boxes and
+     * sessions, e.g. to emit profiling events.
+     *
+     * @param listener The listener, or <tt>null</tt> to remove the current one.
+     */
+    public static void setOperationListener(OperationListener listener) {
+        Instrumentation.listener = listener;
+    }
+
+    /**
+     * Get the approximate native memory held by this box and its loaded
+     * sessions.
+     *
+     * <p>Native allocations do not show up in any JVM heap metrics. The
+     * numbers reported here are estimates based on the number of live
+     * native handles and the serialised sizes of the loaded sessions.</p>
+     */
+    public NativeMemoryStats getNativeMemoryStats() {
+        synchronized (lock) {
+            return new NativeMemoryStats(isClosed() ? 0 : 1, sessions.size(), nativeBytes.get());
+        }
+    }
+
+    /**
+     * Get the approximate native memory held by all open boxes and their
+     * loaded sessions in this process.
+     *
+     * @see #getNativeMemoryStats
+     */
+    public static NativeMemoryStats getTotalNativeMemoryStats() {
+        return new NativeMemoryStats(TOTAL_BOXES.get(), TOTAL_SESSIONS.get(), TOTAL_BYTES.get());
+    }
+
+    /**
+     * Set a budget for the approximate native memory held by this box.
+     *
+     * <p>Whenever loading or initialising a session makes the box exceed its
+     * budget, loaded sessions are saved, if they have unsaved changes, and
+     * closed, least recently obtained through {@link #getSession} or
+     * initialised first, until the box is within its budget again. Sessions
+     * are saved before the call that exceeded the budget returns, but without
+     * holding the box lock. The session that was just loaded or initialised
+     * is never closed this way.</p>
+     *
+     * <p>Note: With a budget in place, a session obtained from this box may be
+     * closed at any time. Such sessions should therefore be obtained through
+     * {@link #getSession} for every use rather than being held on to.</p>
+     *
+     * @param bytes The budget in bytes, or 0 for no budget (the default).
+     * @see #getNativeMemoryStats
+     */
+    public void setNativeMemoryBudget(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("bytes must be >= 0");
+        }
+        synchronized (lock) {
+            errorIfClosed();
+            nativeBudget = bytes;
+            enforceBudget(null);
+        }
+        evict();
+    }
+
+    /**
+     * Get the durability of session saves of this box.
+     */
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Write all session saves that have been deferred due to the
+     * {@link Durability} of this box.
+     *
+     * <p>All deferred saves are attempted, even if some of them fail. The
+     * first error is rethrown afterwards, and the failed sessions remain
+     * deferred.</p>
+     */
+    public void flush() throws CryptoException {
+        errorIfClosed();
+        CryptoException error = null;
+        for (CryptoSession s : new ArrayList<CryptoSession>(pendingSaves)) {
+            pendingSaves.remove(s);
+            try {
+                s.flush();
+            } catch (CryptoException e) {
+                if (!s.isClosed()) {
+                    pendingSaves.add(s);
+                }
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Get the persistence counters of this box, e.g. to determine the
+     * write amplification of session saves.
+     */
+    public PersistenceStats getPersistenceStats() {
+        return new PersistenceStats(saveRequests.get(), sessionWrites.get(), preKeyWrites.get(), bytesWritten.get());
+    }
+
+    /**
+     * Set the time after which idle sessions are closed automatically.
+     *
+     * <p>With a timeout in place, a background thread periodically saves
+     * (if they have unsaved changes) and closes all loaded sessions that
+     * have not been used, i.e. obtained through {@link #getSession} or used
+     * to encrypt or decrypt, for longer than the timeout. Sessions that
+     * cannot be saved are kept.</p>
+     *
+     * <p>Note: With a timeout in place, a session obtained from this box may
+     * be closed at any time. Such sessions should therefore be obtained through
+     * {@link #getSession} for every use rather than being held on to.</p>
+     *
+     * @param timeout The idle time after which a session is closed, or 0 to
+     *                disable automatic closing (the default).
+     * @param unit The unit of <tt>timeout</tt>.
+     * @see #sweepIdleSessions
+     */
+    public void setIdleTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout must be >= 0");
+        }
+        synchronized (lock) {
+            errorIfClosed();
+            if (idleSweeper != null) {
+                idleSweeper.cancel(false);
+                idleSweeper = null;
+            }
+            idleTimeout = unit.toNanos(timeout);
+            if (idleTimeout > 0) {
+                long period = Math.max(1, TimeUnit.NANOSECONDS.toMillis(idleTimeout) / 2);
+                IdleSweeper sweeper = new IdleSweeper(this);
+                idleSweeper = Scheduler.scheduleWithFixedDelay(sweeper, period, TimeUnit.MILLISECONDS);
+                sweeper.future = idleSweeper;
+            }
+        }
+    }
+
+    /**
+     * Save and close all loaded sessions that have been idle for longer
+     * than the timeout set with {@link #setIdleTimeout}, right away.
+     *
+     * @return The number of sessions closed.
+     */
+    public int sweepIdleSessions() {
+        List<CryptoSession> idle = new ArrayList<CryptoSession>();
+        synchronized (lock) {
+            errorIfClosed();
+            if (idleTimeout == 0) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            for (CryptoSession s : sessions.values()) {
+                if (now - s.lastUsed() > idleTimeout) {
+                    idle.add(s);
+                }
+            }
+        }
+
+        // Saving is slow, so the box lock is only held for a batch at a time.
+        int swept = 0;
+        for (int i = 0; i < idle.size(); i += DELETE_BATCH) {
+            List<CryptoSession> batch = idle.subList(i, Math.min(idle.size(), i + DELETE_BATCH));
+            synchronized (lock) {
+                if (isClosed() || idleTimeout == 0) {
+                    break;
+                }
+                long now = System.nanoTime();
+                for (CryptoSession s : batch) {
+                    // The session may have been used or closed since it was collected.
+                    if (sessions.get(s.id) != s || now - s.lastUsed() <= idleTimeout) {
+                        continue;
+                    }
+                    try {
+                        s.saveIfDirty();
+                    } catch (CryptoException e) {
+                        continue; // Keep sessions whose changes could not be saved.
+                    }
+                    unregister(s);
+                    ++swept;
+                }
+            }
+        }
+        sweptSessions.addAndGet(swept);
+        return swept;
+    }
+
+    /**
+     * Get the total number of sessions closed for being idle.
+     *
+     * @see #setIdleTimeout
+     */
+    public long getSweptSessionCount() {
+        return sweptSessions.get();
     }
 
     /**
@@ -329,15 +1620,308 @@ final public class CryptoBox {
             if (isClosed()) {
                 return;
             }
+            if (idleSweeper != null) {
+                idleSweeper.cancel(false);
+                idleSweeper = null;
+            }
             closeAllSessions();
-            jniClose(this.ptr);
+            evicting.clear();
+            NativeBackend.INSTANCE.close(this.ptr);
             ptr = 0;
+            if (owner != null) {
+                owner.release();
+                owner = null;
+            }
+            TOTAL_BOXES.decrementAndGet();
+            TOTAL_BYTES.addAndGet(-nativeBytes.getAndSet(0));
         }
     }
 
+    /**
+     * Check whether this box has been closed. Does not wait for the box lock.
+     */
     public boolean isClosed() {
-        synchronized (lock) {
-            return ptr == 0;
+        return ptr == 0;
+    }
+
+    /** Add a session to the pool. Must be called with the box lock held. */
+    private void register(CryptoSession sess) {
+        sess.box = this;
+        sess.nativeSize = nativeSize(sess.id);
+        sessions.put(sess.id, sess);
+        if (index != null) {
+            index.add(sess.id);
+        }
+        nativeBytes.addAndGet(sess.nativeSize);
+        TOTAL_SESSIONS.incrementAndGet();
+        TOTAL_BYTES.addAndGet(sess.nativeSize);
+        enforceBudget(sess);
+    }
+
+    /**
+     * Remove a session from the pool and close it, writing a deferred save
+     * first. Must be called with the box lock held.
+     */
+    private void unregister(CryptoSession sess) {
+        unregister(sess, true);
+    }
+
+    /**
+     * Remove a session from the pool and close it, writing a deferred save
+     * first if <tt>flush</tt> is set. A session that has never been written
+     * is dropped from the {@link #hasSession} index, since it cannot be
+     * loaded again. Must be called with the box lock held.
+     */
+    private void unregister(CryptoSession sess, boolean flush) {
+        sessions.remove(sess.id);
+        pendingSaves.remove(sess);
+        // Not gated on the removal above: a concurrent flush may have taken
+        // the session out of pendingSaves without having written it yet.
+        if (flush) {
+            try {
+                sess.flush();
+            } catch (CryptoException e) {
+                // Same as a failed save: the changes since the last write are lost.
+            }
+        }
+        sess.close();
+        if (!sess.stored && index != null) {
+            index.remove(sess.id);
+        }
+        nativeBytes.addAndGet(-sess.nativeSize);
+        TOTAL_SESSIONS.decrementAndGet();
+        TOTAL_BYTES.addAndGet(-sess.nativeSize);
+    }
+
+    /**
+     * Decide whether a requested save of a session is written immediately
+     * or deferred. Called by the session with its own lock held.
+     *
+     * @return <tt>true</tt> if the session should be written immediately.
+     */
+    boolean saveRequested(CryptoSession sess) {
+        saveRequests.incrementAndGet();
+        if (durability == Durability.STRICT) {
+            return true;
+        }
+        pendingSaves.add(sess);
+        return false;
+    }
+
+    /**
+     * Account for a session that has been written to storage.
+     * Called by the session with its own lock held.
+     */
+    void written(CryptoSession sess) {
+        sessionWrites.incrementAndGet();
+        resize(sess);
+        bytesWritten.addAndGet(sess.nativeSize - SESSION_NATIVE_SIZE);
+    }
+
+    private void preKeyWritten(PreKey pk) {
+        preKeyWrites.incrementAndGet();
+        bytesWritten.addAndGet(pk.data.length);
+    }
+
+    /** Update the size estimate of a session from its serialised size. */
+    private void resize(CryptoSession sess) {
+        long size  = SESSION_NATIVE_SIZE + sessionFile(sess.id).length();
+        long delta = size - sess.nativeSize;
+        sess.nativeSize = size;
+        nativeBytes.addAndGet(delta);
+        TOTAL_BYTES.addAndGet(delta);
+    }
+
+    /**
+     * Choose sessions to close while over budget, least recently obtained
+     * first. Sessions with nothing to write are closed right away, the
+     * others are left to {@link #evict}, so that no session is written with
+     * the box lock held. Must be called with the box lock held.
+     */
+    private void enforceBudget(CryptoSession keep) {
+        if (nativeBudget == 0 || nativeBytes.get() <= nativeBudget) {
+            return;
+        }
+        long bytes = nativeBytes.get();
+        for (CryptoSession s : evicting) {
+            bytes -= s.nativeSize;
+        }
+        List<CryptoSession> clean = new ArrayList<CryptoSession>();
+        for (CryptoSession s : sessions.values()) {
+            if (bytes <= nativeBudget) {
+                break;
+            }
+            if (s == keep || evicting.contains(s)) {
+                continue;
+            }
+            if (s.needsWrite()) {
+                evicting.add(s);
+            } else {
+                clean.add(s);
+            }
+            bytes -= s.nativeSize;
+        }
+        for (CryptoSession s : clean) {
+            unregister(s);
+        }
+    }
+
+    /**
+     * Write and close the sessions chosen by {@link #enforceBudget}. Called
+     * without the box lock; it is only held for a batch of
+     * {@link #DELETE_BATCH} sessions at a time to close them. Sessions that
+     * cannot be written or that have changed since are kept.
+     */
+    private void evict() {
+        if (evicting.isEmpty()) {
+            return;
+        }
+        List<CryptoSession> chosen = new ArrayList<CryptoSession>(evicting);
+        boolean[] written = new boolean[chosen.size()];
+        for (int i = 0; i < chosen.size(); ++i) {
+            try {
+                chosen.get(i).saveIfDirty();
+                chosen.get(i).flush();
+                written[i] = true;
+            } catch (CryptoException e) {
+                // Kept, see below.
+            }
+        }
+        for (int i = 0; i < chosen.size(); i += DELETE_BATCH) {
+            synchronized (lock) {
+                for (int k = i; k < Math.min(chosen.size(), i + DELETE_BATCH); ++k) {
+                    CryptoSession s = chosen.get(k);
+                    // Another thread may have handled the session already.
+                    if (!evicting.remove(s) || isClosed() || s.isClosed()) {
+                        continue;
+                    }
+                    if (written[k] && !s.needsWrite()) {
+                        unregister(s);
+                    }
+                }
+            }
+        }
+    }
+
+    /** The native size a session is accounted with once loaded, see {@link CryptoSession#getNativeSize}. */
+    private long nativeSize(String sid) {
+        return SESSION_NATIVE_SIZE + sessionFile(sid).length();
+    }
+
+    private File sessionFile(String sid) {
+        return new File(new File(dir, "sessions"), sid);
+    }
+
+    private static String[] list(File dir) {
+        String[] names = dir.list();
+        return names == null ? new String[0] : names;
+    }
+
+    private static void mkdir(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdir()) {
+            throw new IOException("Failed to create " + dir);
+        }
+    }
+
+    /**
+     * Copy a file or directory tree and sync the copied files. Files that
+     * no longer exist are skipped.
+     *
+     * @return The number of bytes copied.
+     */
+    static long copy(File src, File dst) throws IOException {
+        if (src.isDirectory()) {
+            mkdir(dst);
+            long n = 0;
+            for (String name : list(src)) {
+                n += copy(new File(src, name), new File(dst, name));
+            }
+            return n;
+        }
+        FileInputStream in;
+        try {
+            in = new FileInputStream(src);
+        } catch (FileNotFoundException e) {
+            return 0; // Deleted in the meantime.
+        }
+        try {
+            FileOutputStream out = new FileOutputStream(dst);
+            try {
+                byte[] buf = new byte[8192];
+                long n = 0;
+                int len;
+                while ((len = in.read(buf)) != -1) {
+                    out.write(buf, 0, len);
+                    n += len;
+                }
+                out.getFD().sync();
+                return n;
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Limits the throughput of a snapshot. */
+    private static final class Throttle {
+        private final long bytesPerSecond;
+        private final long start = System.nanoTime();
+        private long bytes = 0;
+
+        Throttle(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        void add(long n) {
+            bytes += n;
+        }
+
+        /** Wait until the bytes added so far are within the limit. */
+        void await() throws InterruptedIOException {
+            if (bytesPerSecond == 0) {
+                return;
+            }
+            long due  = start + (long) (bytes * 1e9 / bytesPerSecond);
+            long wait = due - System.nanoTime();
+            if (wait <= 0) {
+                return;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Snapshot interrupted");
+            }
+        }
+    }
+
+    /**
+     * Periodically sweeps the idle sessions of a box. Only weakly refers to
+     * the box, so that an unreachable box can still be finalized.
+     */
+    private static final class IdleSweeper implements Runnable {
+        private final WeakReference<CryptoBox> box;
+        volatile ScheduledFuture<?> future;
+
+        IdleSweeper(CryptoBox box) {
+            this.box = new WeakReference<CryptoBox>(box);
+        }
+
+        @Override public void run() {
+            CryptoBox b = box.get();
+            if (b == null || b.isClosed()) {
+                if (future != null) {
+                    future.cancel(false);
+                }
+                return;
+            }
+            try {
+                b.sweepIdleSessions();
+            } catch (IllegalStateException e) {
+                // The box has been closed concurrently.
+            }
         }
     }
 
@@ -351,16 +1935,17 @@ final public class CryptoBox {
         close();
     }
 
-    private native static CryptoBox jniOpen(String dir) throws CryptoException;
-    private native static CryptoBox jniOpenWith(String dir, byte[] id, int mode) throws CryptoException;
-    private native static byte[] jniGetFingerprintFromPrekey(byte[] prekey) throws CryptoException;
-    private native static PreKey jniNewLastPreKey(long ptr) throws CryptoException;
-    private native static PreKey[] jniNewPreKeys(long ptr, int start, int num) throws CryptoException;
-    private native static byte[] jniGetLocalFingerprint(long ptr) throws CryptoException;
-    private native static CryptoSession jniInitSessionFromPreKey(long ptr, String sid, byte[] prekey) throws CryptoException;
-    private native static SessionMessage jniInitSessionFromMessage(long ptr, String sid, byte[] message) throws CryptoException;
-    private native static CryptoSession jniLoadSession(long ptr, String sid) throws CryptoException;
-    private native static void jniDeleteSession(long ptr, String sid) throws CryptoException;
-    private native static byte[] jniCopyIdentity(long ptr) throws CryptoException;
-    private native static void jniClose(long ptr);
+    native static CryptoBox jniOpen(String dir) throws CryptoException;
+    native static CryptoBox jniOpenWith(String dir, byte[] id, int mode) throws CryptoException;
+    native static byte[] jniGetFingerprintFromPrekey(byte[] prekey) throws CryptoException;
+    native static PreKey jniNewLastPreKey(long ptr) throws CryptoException;
+    native static PreKey[] jniNewPreKeys(long ptr, int start, int num) throws CryptoException;
+    native static byte[] jniGetLocalFingerprint(long ptr) throws CryptoException;
+    native static CryptoSession jniInitSessionFromPreKey(long ptr, String sid, byte[] prekey) throws CryptoException;
+    native static CryptoSession[] jniInitSessionsFromPreKeys(long ptr, String[] sids, byte[][] prekeys, int[] errors);
+    native static SessionMessage jniInitSessionFromMessage(long ptr, String sid, byte[] message) throws CryptoException;
+    native static CryptoSession jniLoadSession(long ptr, String sid) throws CryptoException;
+    native static void jniDeleteSession(long ptr, String sid) throws CryptoException;
+    native static byte[] jniCopyIdentity(long ptr) throws CryptoException;
+    native static void jniClose(long ptr);
 }
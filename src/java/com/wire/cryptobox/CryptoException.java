@@ -27,7 +27,7 @@ final public class CryptoException extends Exception {
         this.code = code;
     }
 
-    private static Code fromNativeCode(int code) {
+    static Code fromNativeCode(int code) {
         switch (code) {
             case  1: return Code.STORAGE_ERROR;
             case  2: return Code.SESSION_NOT_FOUND;
@@ -164,6 +164,14 @@ final public class CryptoException extends Exception {
          */
         INVALID_STRING,
 
+        /**
+         * A box could not be opened with {@link CryptoBox#openOwned} within
+         * the given timeout, since it is owned by another box, either in this
+         * or in another process. The box may be requested from its owner
+         * with {@link CryptoBox#requestHandoff}.
+         */
+        BOX_LOCKED,
+
         /** An unspecified error occurred. */
         UNKNOWN_ERROR
     }
@@ -15,6 +15,15 @@
 
 package com.wire.cryptobox;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import com.wire.cryptobox.OperationListener.Operation;
+
 /**
  * A <tt>CryptoSession</tt> represents a cryptographic session with a peer
  * (e.g. client or device) and is used to encrypt and decrypt messages sent
@@ -24,33 +33,75 @@ package com.wire.cryptobox;
  */
 final public class CryptoSession {
     private final long boxPtr;
-    private long ptr;
+    /** Only written with the session lock held; volatile for the lock-free {@link #isClosed}. */
+    private volatile long ptr;
+    private volatile byte[] remoteFingerprint;
     private final Object lock = new Object();
+    private boolean dirty = false;
+    private boolean pendingSave = false;
+    private volatile long lastUsed;
+
+    /** The box that pools this session, set when it is added to the pool. */
+    CryptoBox box;
+
+    /** The approximate native size of this session. Maintained by the pooling box. */
+    volatile long nativeSize;
+
+    /** Whether this session has been loaded from or written to storage. */
+    volatile boolean stored;
 
     public final String id;
 
-    private CryptoSession(long boxPtr, long ptr, String id) {
-        this.boxPtr = boxPtr;
-        this.ptr    = ptr;
-        this.id     = id;
+    CryptoSession(long boxPtr, long ptr, String id) {
+        this.boxPtr   = boxPtr;
+        this.ptr      = ptr;
+        this.id       = id;
+        this.lastUsed = System.nanoTime();
     }
 
     /**
      * Save the session, persisting any changes made to the underlying
      * key material as a result of any {@link #encrypt} and {@link #decrypt}
      * operations since the last save.
+     *
+     * <p>With {@link CryptoBox.Durability#RELAXED}, the session is only
+     * written to storage by {@link CryptoBox#flush} or when it is closed.</p>
      */
     public void save() throws CryptoException {
+        long start = Instrumentation.start();
         synchronized (lock) {
+            long acquired = Instrumentation.acquired(start);
             errorIfClosed();
+            if (box != null && !box.saveRequested(this)) {
+                pendingSave = true;
+                Instrumentation.done(Operation.SAVE, id, 0, 0, start, acquired);
+                return;
+            }
             try {
-                jniSave(this.boxPtr, this.ptr);
+                write();
             } catch (CryptoException e) {
-                if (e.code == CryptoException.Code.PANIC) {
-                    this.close();
-                }
+                Instrumentation.failed(Operation.SAVE, id, 0, e, start, acquired);
                 throw e;
             }
+            Instrumentation.done(Operation.SAVE, id, 0, (int) Math.max(0, nativeSize - CryptoBox.SESSION_NATIVE_SIZE), start, acquired);
+        }
+    }
+
+    /** Write this session to storage. Must be called with the session lock held. */
+    private void write() throws CryptoException {
+        try {
+            NativeBackend.INSTANCE.save(this.boxPtr, this.ptr);
+            dirty = false;
+            pendingSave = false;
+            stored = true;
+            if (box != null) {
+                box.written(this);
+            }
+        } catch (CryptoException e) {
+            if (e.code == CryptoException.Code.PANIC) {
+                this.close();
+            }
+            throw e;
         }
     }
 
@@ -61,11 +112,19 @@ final public class CryptoSession {
      * @return A byte array containing the ciphertext.
      */
     public byte[] encrypt(byte[] plaintext) throws CryptoException {
+        long start = Instrumentation.start();
         synchronized (lock) {
+            long acquired = Instrumentation.acquired(start);
             errorIfClosed();
+            touch();
+            dirty = true;
             try {
-                return jniEncrypt(this.ptr, plaintext);
+                byte[] encoded    = box == null ? plaintext : box.encodePlaintext(id, plaintext);
+                byte[] ciphertext = NativeBackend.INSTANCE.encrypt(this.ptr, encoded);
+                Instrumentation.done(Operation.ENCRYPT, id, plaintext.length, ciphertext.length, start, acquired);
+                return ciphertext;
             } catch (CryptoException e) {
+                Instrumentation.failed(Operation.ENCRYPT, id, plaintext.length, e, start, acquired);
                 if (e.code == CryptoException.Code.PANIC) {
                     this.close();
                 }
@@ -81,11 +140,21 @@ final public class CryptoSession {
      * @return A byte array containing the plaintext.
      */
     public byte[] decrypt(byte[] ciphertext) throws CryptoException {
+        long start = Instrumentation.start();
         synchronized (lock) {
+            long acquired = Instrumentation.acquired(start);
             errorIfClosed();
+            touch();
             try {
-                return jniDecrypt(this.ptr, ciphertext);
+                byte[] plaintext = NativeBackend.INSTANCE.decrypt(this.ptr, ciphertext);
+                dirty = true;
+                if (box != null) {
+                    plaintext = box.decodePlaintext(id, plaintext);
+                }
+                Instrumentation.done(Operation.DECRYPT, id, ciphertext.length, plaintext.length, start, acquired);
+                return plaintext;
             } catch (CryptoException e) {
+                Instrumentation.failed(Operation.DECRYPT, id, ciphertext.length, e, start, acquired);
                 if (e.code == CryptoException.Code.PANIC) {
                     this.close();
                 }
@@ -94,20 +163,196 @@ final public class CryptoSession {
         }
     }
 
+    /**
+     * Encrypt a large payload read from a stream.
+     *
+     * <p>A fresh symmetric key is generated for the payload and encrypted
+     * with this session. The payload itself is encrypted with that key in
+     * fixed-size authenticated chunks and written to <tt>out</tt>, so the
+     * memory used is independent of the size of the payload. The session
+     * lock is only held while the key is being encrypted.</p>
+     *
+     * <p>The returned key message must be delivered to the peer like any
+     * other message produced by {@link #encrypt}, together with the
+     * encrypted payload, for use with {@link #decryptStream}.</p>
+     *
+     * @param in The plaintext payload, read until the end of the stream.
+     * @param out The sink for the encrypted payload.
+     * @return A byte array containing the encrypted payload key.
+     */
+    public byte[] encryptStream(InputStream in, OutputStream out) throws CryptoException, IOException {
+        byte[] key = StreamCipher.newKey();
+        try {
+            byte[] keyMessage = encrypt(key);
+            StreamCipher.encrypt(key, in, out);
+            return keyMessage;
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    /**
+     * Encrypt a large payload read from a file channel, starting at its
+     * current position, through a memory mapping of the file.
+     * The position of the channel is advanced past the bytes read, also if
+     * an error stops reading part-way.
+     *
+     * @see #encryptStream(InputStream, OutputStream)
+     */
+    public byte[] encryptStream(FileChannel in, OutputStream out) throws CryptoException, IOException {
+        return encryptStream(new MappedInputStream(in), out);
+    }
+
+    /**
+     * Decrypt the payload key of a large payload produced by
+     * {@link #encryptStream}.
+     *
+     * <p>This advances the session like {@link #decrypt}, so it must be
+     * done only once per key message, whereas the returned key can decrypt
+     * the payload any number of times, e.g. to retry a transfer that failed
+     * partway.</p>
+     *
+     * @param keyMessage The encrypted payload key.
+     */
+    public TransferKey decryptTransferKey(byte[] keyMessage) throws CryptoException {
+        byte[] key = decrypt(keyMessage);
+        if (key.length != StreamCipher.KEY_LEN) {
+            Arrays.fill(key, (byte) 0);
+            throw new CryptoException(CryptoException.Code.DECODE_ERROR);
+        }
+        return new TransferKey(key);
+    }
+
+    /**
+     * Decrypt a large payload produced by {@link #encryptStream}.
+     *
+     * <p>Equivalent to {@link #decryptTransferKey} followed by
+     * {@link TransferKey#decryptStream}. Since the key message is consumed
+     * by the session first, a payload that fails to be read completely,
+     * e.g. due to a truncated stream or an {@link IOException}, cannot be
+     * decrypted by calling this method again: that fails with
+     * {@link CryptoException.Code#DUPLICATE_MESSAGE}. Use
+     * {@link #decryptTransferKey} for transfers that may need to be
+     * retried.</p>
+     *
+     * @param keyMessage The encrypted payload key.
+     * @param in The encrypted payload, read until the end of the stream.
+     * @param out The sink for the plaintext payload.
+     * @see TransferKey#decryptStream(InputStream, OutputStream)
+     */
+    public void decryptStream(byte[] keyMessage, InputStream in, OutputStream out) throws CryptoException, IOException {
+        TransferKey key = decryptTransferKey(keyMessage);
+        try {
+            key.decryptStream(in, out);
+        } finally {
+            key.destroy();
+        }
+    }
+
+    /**
+     * Decrypt a large payload read from a file channel, starting at its
+     * current position, through a memory mapping of the file.
+     * The position of the channel is advanced past the bytes read, also if
+     * an error stops reading part-way.
+     *
+     * @see #decryptStream(byte[], InputStream, OutputStream)
+     */
+    public void decryptStream(byte[] keyMessage, FileChannel in, OutputStream out) throws CryptoException, IOException {
+        decryptStream(keyMessage, new MappedInputStream(in), out);
+    }
+
     /**
      * Get the remote fingerprint as a hex-encoded byte array.
+     *
+     * <p>The remote identity of a session never changes, so the fingerprint
+     * is cached after the first call and later calls do not wait for
+     * {@link #encrypt} or {@link #decrypt} in progress.</p>
      */
     public byte[] getRemoteFingerprint() throws CryptoException {
-        synchronized (lock) {
-            errorIfClosed();
-            try {
-                return jniGetRemoteFingerprint(this.ptr);
-            } catch (CryptoException e) {
-                if (e.code == CryptoException.Code.PANIC) {
-                    this.close();
+        errorIfClosed();
+        byte[] fp = remoteFingerprint;
+        if (fp == null) {
+            synchronized (lock) {
+                errorIfClosed();
+                try {
+                    fp = NativeBackend.INSTANCE.getRemoteFingerprint(this.ptr);
+                } catch (CryptoException e) {
+                    if (e.code == CryptoException.Code.PANIC) {
+                        this.close();
+                    }
+                    throw e;
                 }
-                throw e;
+                remoteFingerprint = fp;
+            }
+        }
+        return fp.clone();
+    }
+
+    /**
+     * Get the approximate amount of native memory held by this session,
+     * in bytes.
+     *
+     * @see CryptoBox#getNativeMemoryStats
+     */
+    public long getNativeSize() {
+        return nativeSize;
+    }
+
+    /** Record a use of this session. */
+    void touch() {
+        lastUsed = System.nanoTime();
+    }
+
+    /** The value of {@link System#nanoTime} at the last use of this session. */
+    long lastUsed() {
+        return lastUsed;
+    }
+
+    /** Mark this session as having changes that have not been saved yet. */
+    void markDirty() {
+        synchronized (lock) {
+            dirty = true;
+        }
+    }
+
+    /** Write this session if it is open and has changes that have not been written yet. */
+    void saveIfDirty() throws CryptoException {
+        synchronized (lock) {
+            if (!isClosed() && dirty) {
+                write();
+            }
+        }
+    }
+
+    /** Whether this session is open and has changes or a deferred save that have not been written yet. */
+    boolean needsWrite() {
+        synchronized (lock) {
+            return !isClosed() && (dirty || pendingSave);
+        }
+    }
+
+    /** Write this session if it is open and a save of it has been deferred. */
+    void flush() throws CryptoException {
+        synchronized (lock) {
+            if (!isClosed() && pendingSave) {
+                write();
+            }
+        }
+    }
+
+    /**
+     * Copy the file of this session as last written, with the session lock
+     * held so that no write can interleave. Unsaved changes are not written,
+     * since the application has not saved them yet.
+     *
+     * @return The number of bytes copied, or -1 if the session is closed.
+     */
+    long snapshot(File src, File dst) throws IOException {
+        synchronized (lock) {
+            if (isClosed()) {
+                return -1;
             }
+            return CryptoBox.copy(src, dst);
         }
     }
 
@@ -116,15 +361,17 @@ final public class CryptoSession {
             if (isClosed()) {
                 return;
             }
-            jniClose(this.ptr);
+            NativeBackend.INSTANCE.closeSession(this.ptr);
             ptr = 0;
         }
     }
 
+    /**
+     * Check whether this session has been closed. Does not wait for the
+     * session lock.
+     */
     public boolean isClosed() {
-        synchronized (lock) {
-            return ptr == 0;
-        }
+        return ptr == 0;
     }
 
     private void errorIfClosed() {
@@ -137,9 +384,9 @@ final public class CryptoSession {
         close();
     }
 
-    private native static void   jniSave(long boxPtr, long ptr) throws CryptoException;
-    private native static byte[] jniEncrypt(long ptr, byte[] plaintext) throws CryptoException;
-    private native static byte[] jniDecrypt(long ptr, byte[] ciphertext) throws CryptoException;
-    private native static byte[] jniGetRemoteFingerprint(long ptr) throws CryptoException;
-    private native static void   jniClose(long ptr);
+    native static void   jniSave(long boxPtr, long ptr) throws CryptoException;
+    native static byte[] jniEncrypt(long ptr, byte[] plaintext) throws CryptoException;
+    native static byte[] jniDecrypt(long ptr, byte[] ciphertext) throws CryptoException;
+    native static byte[] jniGetRemoteFingerprint(long ptr) throws CryptoException;
+    native static void   jniClose(long ptr);
 }
@@ -0,0 +1,80 @@
+// Copyright (C) 2015 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.cryptobox;
+
+/**
+ * Dispatches operations to the installed {@link OperationListener}.
+ *
+ * <p>Operations record their start before taking a lock and the time the
+ * lock was acquired. Both are 0 if no listener is installed, in which case
+ * nothing is reported and no clock is read.</p>
+ */
+final class Instrumentation {
+    static volatile OperationListener listener;
+
+    private Instrumentation() {}
+
+    /** The start time of an operation, before taking any lock. */
+    static long start() {
+        return listener == null ? 0 : System.nanoTime();
+    }
+
+    /** The time the lock of an operation started at <tt>start</tt> has been acquired. */
+    static long acquired(long start) {
+        return start == 0 ? 0 : System.nanoTime();
+    }
+
+    /** The time a batch of operations started at <tt>start</tt> has completed. */
+    static long end(long start) {
+        return start == 0 ? 0 : System.nanoTime();
+    }
+
+    static void done(OperationListener.Operation op, String sid, int in, int out, long start, long acquired) {
+        report(op, sid, in, out, null, start, acquired, end(start), 1);
+    }
+
+    static void failed(OperationListener.Operation op, String sid, int in, CryptoException e, long start, long acquired) {
+        report(op, sid, in, 0, e.code, start, acquired, end(start), 1);
+    }
+
+    /**
+     * Report one of <tt>count</tt> operations that completed together at
+     * <tt>end</tt>, with an even share of the lock wait and the duration of
+     * the batch.
+     */
+    static void doneInBatch(OperationListener.Operation op, String sid, int in, int out,
+                            long start, long acquired, long end, int count) {
+        report(op, sid, in, out, null, start, acquired, end, count);
+    }
+
+    static void failedInBatch(OperationListener.Operation op, String sid, int in, CryptoException e,
+                              long start, long acquired, long end, int count) {
+        report(op, sid, in, 0, e.code, start, acquired, end, count);
+    }
+
+    private static void report(OperationListener.Operation op, String sid, int in, int out,
+                               CryptoException.Code error, long start, long acquired, long end, int count) {
+        OperationListener l = listener;
+        if (l == null || start == 0) {
+            return;
+        }
+        try {
+            l.onOperation(op, sid, in, out, error, (acquired - start) / count, (end - acquired) / count);
+        } catch (RuntimeException e) {
+            // Listeners must not interfere with operations.
+        }
+    }
+}
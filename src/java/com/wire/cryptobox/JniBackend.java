@@ -0,0 +1,108 @@
+// Copyright (C) 2015 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.cryptobox;
+
+/**
+ * The default backend, calling into <tt>libcryptobox-jni</tt> whose
+ * functions are registered as the <tt>jni*</tt> natives of
+ * <tt>CryptoBox</tt> and <tt>CryptoSession</tt> when it is loaded.
+ */
+final class JniBackend extends NativeBackend {
+    static {
+        // It's called libsodium.dll on Windows, unfortunately.
+        final String prefix = System.getProperty("os.name").toLowerCase().contains("win")
+                            ? "lib" : "";
+        System.loadLibrary(prefix + "sodium");
+        System.loadLibrary("cryptobox");
+        System.loadLibrary("cryptobox-jni");
+    }
+
+    @Override String name() {
+        return "jni";
+    }
+
+    @Override CryptoBox open(String dir) throws CryptoException {
+        return CryptoBox.jniOpen(dir);
+    }
+
+    @Override CryptoBox openWith(String dir, byte[] id, int mode) throws CryptoException {
+        return CryptoBox.jniOpenWith(dir, id, mode);
+    }
+
+    @Override byte[] getFingerprintFromPrekey(byte[] prekey) throws CryptoException {
+        return CryptoBox.jniGetFingerprintFromPrekey(prekey);
+    }
+
+    @Override PreKey newLastPreKey(long ptr) throws CryptoException {
+        return CryptoBox.jniNewLastPreKey(ptr);
+    }
+
+    @Override PreKey[] newPreKeys(long ptr, int start, int num) throws CryptoException {
+        return CryptoBox.jniNewPreKeys(ptr, start, num);
+    }
+
+    @Override byte[] getLocalFingerprint(long ptr) throws CryptoException {
+        return CryptoBox.jniGetLocalFingerprint(ptr);
+    }
+
+    @Override CryptoSession initSessionFromPreKey(long ptr, String sid, byte[] prekey) throws CryptoException {
+        return CryptoBox.jniInitSessionFromPreKey(ptr, sid, prekey);
+    }
+
+    @Override CryptoSession[] initSessionsFromPreKeys(long ptr, String[] sids, byte[][] prekeys, int[] errors) {
+        return CryptoBox.jniInitSessionsFromPreKeys(ptr, sids, prekeys, errors);
+    }
+
+    @Override SessionMessage initSessionFromMessage(long ptr, String sid, byte[] message) throws CryptoException {
+        return CryptoBox.jniInitSessionFromMessage(ptr, sid, message);
+    }
+
+    @Override CryptoSession loadSession(long ptr, String sid) throws CryptoException {
+        return CryptoBox.jniLoadSession(ptr, sid);
+    }
+
+    @Override void deleteSession(long ptr, String sid) throws CryptoException {
+        CryptoBox.jniDeleteSession(ptr, sid);
+    }
+
+    @Override byte[] copyIdentity(long ptr) throws CryptoException {
+        return CryptoBox.jniCopyIdentity(ptr);
+    }
+
+    @Override void close(long ptr) {
+        CryptoBox.jniClose(ptr);
+    }
+
+    @Override void save(long boxPtr, long ptr) throws CryptoException {
+        CryptoSession.jniSave(boxPtr, ptr);
+    }
+
+    @Override byte[] encrypt(long ptr, byte[] plaintext) throws CryptoException {
+        return CryptoSession.jniEncrypt(ptr, plaintext);
+    }
+
+    @Override byte[] decrypt(long ptr, byte[] ciphertext) throws CryptoException {
+        return CryptoSession.jniDecrypt(ptr, ciphertext);
+    }
+
+    @Override byte[] getRemoteFingerprint(long ptr) throws CryptoException {
+        return CryptoSession.jniGetRemoteFingerprint(ptr);
+    }
+
+    @Override void closeSession(long ptr) {
+        CryptoSession.jniClose(ptr);
+    }
+}
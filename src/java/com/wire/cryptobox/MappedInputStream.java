@@ -0,0 +1,81 @@
+// Copyright (C) 2015 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.cryptobox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An <tt>InputStream</tt> over the remainder of a <tt>FileChannel</tt>,
+ * starting at its current position, that reads through a sliding
+ * read-only memory mapping instead of heap buffers. The position of the
+ * channel follows the bytes read, also if reading stops part-way.
+ */
+final class MappedInputStream extends InputStream {
+    private static final long WINDOW_SIZE = 16L * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final long end;
+    /** The channel position of the start of the current window, or of the next one. */
+    private long offset;
+    private MappedByteBuffer window;
+
+    MappedInputStream(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.offset  = channel.position();
+        this.end     = channel.size();
+    }
+
+    @Override public int read() throws IOException {
+        if (!ensureWindow()) {
+            return -1;
+        }
+        int b = window.get() & 0xFF;
+        channel.position(offset + window.position());
+        return b;
+    }
+
+    @Override public int read(byte[] buf, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureWindow()) {
+            return -1;
+        }
+        int n = Math.min(len, window.remaining());
+        window.get(buf, off, n);
+        channel.position(offset + window.position());
+        return n;
+    }
+
+    private boolean ensureWindow() throws IOException {
+        if (window != null) {
+            if (window.hasRemaining()) {
+                return true;
+            }
+            offset += window.capacity();
+            window = null;
+        }
+        if (offset >= end) {
+            return false;
+        }
+        long size = Math.min(WINDOW_SIZE, end - offset);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+        return true;
+    }
+}
@@ -0,0 +1,69 @@
+// Copyright (C) 2015 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.cryptobox;
+
+/**
+ * The unencrypted header information of an encrypted message.
+ *
+ * @see CryptoBox#inspectMessage
+ */
+final public class MessageInfo {
+    /** The type of a message. */
+    public enum Type {
+        /**
+         * A message that initialises a session, to be passed to
+         * {@link CryptoBox#initSessionFromMessage} if the recipient has
+         * no session with the sender yet.
+         */
+        PREKEY,
+
+        /**
+         * A message of an established session, to be passed to
+         * {@link CryptoSession#decrypt}.
+         */
+        CIPHER
+    }
+
+    private final Type type;
+    private final int preKeyId;
+    private final byte[] remoteFingerprint;
+
+    MessageInfo(Type type, int preKeyId, byte[] remoteFingerprint) {
+        this.type              = type;
+        this.preKeyId          = preKeyId;
+        this.remoteFingerprint = remoteFingerprint;
+    }
+
+    /** The type of the message. */
+    public Type getType() {
+        return this.type;
+    }
+
+    /** The ID of the prekey of the recipient used by a prekey message, or -1. */
+    public int getPreKeyId() {
+        return this.preKeyId;
+    }
+
+    /**
+     * The fingerprint of the identity of the sender of a prekey message as a
+     * hex-encoded byte array, or <tt>null</tt>.
+     *
+     * @see CryptoSession#getRemoteFingerprint
+     */
+    public byte[] getRemoteFingerprint() {
+        return this.remoteFingerprint;
+    }
+}
@@ -0,0 +1,78 @@
+// Copyright (C) 2015 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.cryptobox;
+
+/**
+ * The binding of <tt>CryptoBox</tt> and <tt>CryptoSession</tt> to the native
+ * cryptobox library.
+ *
+ * <p>The JNI binding is the default. On JDKs with the Foreign Function &amp;
+ * Memory API, the <tt>cbox_*</tt> functions can be called directly instead
+ * by setting the system property <tt>cryptobox.backend</tt> to <tt>ffm</tt>
+ * before the first box is opened, with the <tt>cryptobox-jni-ffm</tt> jar on
+ * the class path. The backend is chosen once per class loader.</p>
+ *
+ * <p>Pointers are passed as <tt>long</tt>s and all failures of the native
+ * library are reported as a {@link CryptoException}, whichever the backend.</p>
+ */
+abstract class NativeBackend {
+    static final String PROPERTY = "cryptobox.backend";
+
+    private static final String FFM_CLASS = "com.wire.cryptobox.FfmBackend";
+
+    static final NativeBackend INSTANCE = load(System.getProperty(PROPERTY, "jni"));
+
+    private static NativeBackend load(String name) {
+        if (name.equals("jni")) {
+            return new JniBackend();
+        }
+        if (name.equals("ffm")) {
+            try {
+                return (NativeBackend) Class.forName(FFM_CLASS).getDeclaredConstructor().newInstance();
+            } catch (Exception e) {
+                throw new IllegalStateException("The ffm backend is not available.", e);
+            }
+        }
+        throw new IllegalArgumentException("Unknown " + PROPERTY + ": " + name);
+    }
+
+    /** The name of the backend, e.g. for reports. */
+    abstract String name();
+
+    // CryptoBox
+
+    abstract CryptoBox open(String dir) throws CryptoException;
+    abstract CryptoBox openWith(String dir, byte[] id, int mode) throws CryptoException;
+    abstract byte[] getFingerprintFromPrekey(byte[] prekey) throws CryptoException;
+    abstract PreKey newLastPreKey(long ptr) throws CryptoException;
+    abstract PreKey[] newPreKeys(long ptr, int start, int num) throws CryptoException;
+    abstract byte[] getLocalFingerprint(long ptr) throws CryptoException;
+    abstract CryptoSession initSessionFromPreKey(long ptr, String sid, byte[] prekey) throws CryptoException;
+    abstract CryptoSession[] initSessionsFromPreKeys(long ptr, String[] sids, byte[][] prekeys, int[] errors);
+    abstract SessionMessage initSessionFromMessage(long ptr, String sid, byte[] message) throws CryptoException;
+    abstract CryptoSession loadSession(long ptr, String sid) throws CryptoException;
+    abstract void deleteSession(long ptr, String sid) throws CryptoException;
+    abstract byte[] copyIdentity(long ptr) throws CryptoException;
+    abstract void close(long ptr);
+
+    // CryptoSession
+
+    abstract void save(long boxPtr, long ptr) throws CryptoException;
+    abstract byte[] encrypt(long ptr, byte[] plaintext) throws CryptoException;
+    abstract byte[] decrypt(long ptr, byte[] ciphertext) throws CryptoException;
+    abstract byte[] getRemoteFingerprint(long ptr) throws CryptoException;
+    abstract void closeSession(long ptr);
+}
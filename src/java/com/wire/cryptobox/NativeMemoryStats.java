@@ -0,0 +1,54 @@
+// Copyright (C) 2015 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.cryptobox;
+
+/**
+ * A snapshot of the live native handles and the approximate native memory
+ * held by one or all <tt>CryptoBox</tt>es.
+ *
+ * @see CryptoBox#getNativeMemoryStats
+ * @see CryptoBox#getTotalNativeMemoryStats
+ */
+final public class NativeMemoryStats {
+    private final long boxes;
+    private final long sessions;
+    private final long bytes;
+
+    NativeMemoryStats(long boxes, long sessions, long bytes) {
+        this.boxes    = boxes;
+        this.sessions = sessions;
+        this.bytes    = bytes;
+    }
+
+    /** The number of open native boxes. */
+    public long getBoxCount() {
+        return this.boxes;
+    }
+
+    /** The number of loaded native sessions. */
+    public long getSessionCount() {
+        return this.sessions;
+    }
+
+    /** The approximate native memory held, in bytes. */
+    public long getApproximateBytes() {
+        return this.bytes;
+    }
+
+    @Override public String toString() {
+        return "NativeMemoryStats(boxes=" + boxes + ", sessions=" + sessions + ", bytes=" + bytes + ")";
+    }
+}
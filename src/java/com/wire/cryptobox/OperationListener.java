@@ -0,0 +1,53 @@
+// Copyright (C) 2015 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.cryptobox;
+
+/**
+ * An <tt>OperationListener</tt> is notified about every completed
+ * cryptographic or storage operation of all boxes and sessions, e.g. for
+ * profiling or tracing.
+ *
+ * <p>Listeners are invoked synchronously on the thread that performed the
+ * operation, in some cases with box or session locks still held, and must
+ * therefore return quickly. Exceptions thrown by a listener are ignored.</p>
+ *
+ * @see CryptoBox#setOperationListener
+ */
+public interface OperationListener {
+    /** The kinds of operations reported to an {@link OperationListener}. */
+    enum Operation {
+        OPEN, LOAD, INIT_FROM_PREKEY, INIT_FROM_MESSAGE,
+        ENCRYPT, DECRYPT, SAVE, DELETE, NEW_PREKEYS
+    }
+
+    /**
+     * Called after an operation completed, successfully or not.
+     *
+     * @param op The operation.
+     * @param sid The ID of the session operated on, or <tt>null</tt> for
+     *            operations on a box.
+     * @param inputSize The size of the input of the operation in bytes, e.g.
+     *                  the plaintext of an encryption, or 0 if not applicable.
+     * @param outputSize The size of the output of the operation in bytes, e.g.
+     *                   the ciphertext of an encryption, or 0 if not applicable.
+     * @param error The error code if the operation failed, or <tt>null</tt>.
+     * @param lockWaitNanos The time spent waiting for the box or session lock.
+     * @param durationNanos The time spent on the operation once the lock was
+     *                      acquired.
+     */
+    void onOperation(Operation op, String sid, int inputSize, int outputSize,
+                     CryptoException.Code error, long lockWaitNanos, long durationNanos);
+}
@@ -0,0 +1,177 @@
+// Copyright (C) 2015 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.cryptobox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The exclusive ownership of a box directory, held through an advisory
+ * lock on a file in the directory for as long as the box is open.
+ *
+ * <p>The operating system releases the lock when the owning process exits,
+ * so ownership is never left behind by a crashed process. Within a process,
+ * file locks are not exclusive and closing any channel to a locked file may
+ * release the lock, so ownership is additionally tracked per process and the
+ * lock file is never opened twice.</p>
+ *
+ * <p>Handoff requests are detected by polling for a file in the directory
+ * in the background, so that checking for one does no I/O.</p>
+ */
+final class OwnerLock {
+    static final String LOCK_FILE    = ".lock";
+    static final String HANDOFF_FILE = ".handoff";
+
+    /** The interval at which a contended lock is retried, in milliseconds. */
+    private static final long POLL_INTERVAL = 50;
+
+    /** The interval at which an owner checks for a handoff request, in milliseconds. */
+    private static final long HANDOFF_POLL_INTERVAL = 250;
+
+    /** The canonical paths of the lock files held by this process. */
+    private static final Set<String> HELD = new HashSet<String>();
+
+    /** The canonical paths of the handoff files created by this process. */
+    private static final Set<String> REQUESTED = new HashSet<String>();
+
+    private final String path;
+    private final RandomAccessFile file;
+    private final ScheduledFuture<?> poller;
+    private volatile boolean handoffRequested = false;
+
+    private OwnerLock(String path, RandomAccessFile file, final File handoff) {
+        this.path   = path;
+        this.file   = file;
+        this.poller = Scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override public void run() {
+                handoffRequested = handoff.exists();
+            }
+        }, HANDOFF_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Acquire the ownership of a box directory, waiting for at most the
+     * given time. A pending handoff request is cleared once acquired. If
+     * ownership is not acquired, a handoff request made by this process is
+     * withdrawn, so that it does not linger for the next owner.
+     */
+    static OwnerLock acquire(File dir, long timeoutNanos) throws CryptoException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        File handoff = new File(dir, HANDOFF_FILE);
+        boolean acquired = false;
+        try {
+            String path = new File(dir, LOCK_FILE).getCanonicalPath();
+            while (true) {
+                OwnerLock owner = tryAcquire(path, handoff);
+                if (owner != null) {
+                    acquired = true;
+                    return owner;
+                }
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    throw new CryptoException(CryptoException.Code.BOX_LOCKED);
+                }
+                Thread.sleep(Math.min(POLL_INTERVAL, TimeUnit.NANOSECONDS.toMillis(left) + 1));
+            }
+        } catch (IOException e) {
+            throw new CryptoException(CryptoException.Code.STORAGE_ERROR);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CryptoException(CryptoException.Code.BOX_LOCKED);
+        } finally {
+            withdrawHandoff(handoff, acquired);
+        }
+    }
+
+    /**
+     * Delete a handoff file once ownership has been acquired, or if this
+     * process created it and gave up waiting.
+     */
+    private static void withdrawHandoff(File handoff, boolean acquired) {
+        synchronized (REQUESTED) {
+            String path = canonicalPath(handoff);
+            if (REQUESTED.remove(path) || acquired) {
+                handoff.delete();
+            }
+        }
+    }
+
+    private static String canonicalPath(File f) {
+        try {
+            return f.getCanonicalPath();
+        } catch (IOException e) {
+            return f.getAbsolutePath();
+        }
+    }
+
+    private static OwnerLock tryAcquire(String path, File handoff) throws IOException {
+        synchronized (HELD) {
+            if (HELD.contains(path)) {
+                return null;
+            }
+            RandomAccessFile file = new RandomAccessFile(path, "rw");
+            FileLock lock = null;
+            try {
+                lock = file.getChannel().tryLock();
+            } finally {
+                if (lock == null) {
+                    file.close();
+                }
+            }
+            if (lock == null) {
+                return null;
+            }
+            HELD.add(path);
+            return new OwnerLock(path, file, handoff);
+        }
+    }
+
+    /** Request the ownership of a box directory from its current owner. */
+    static void requestHandoff(File dir) throws CryptoException {
+        File handoff = new File(dir, HANDOFF_FILE);
+        synchronized (REQUESTED) {
+            try {
+                handoff.createNewFile();
+            } catch (IOException e) {
+                throw new CryptoException(CryptoException.Code.STORAGE_ERROR);
+            }
+            REQUESTED.add(canonicalPath(handoff));
+        }
+    }
+
+    /** Whether a handoff has been requested, as of the last poll. Does no I/O. */
+    boolean isHandoffRequested() {
+        return handoffRequested;
+    }
+
+    void release() {
+        poller.cancel(false);
+        synchronized (HELD) {
+            try {
+                file.close(); // Releases the lock.
+            } catch (IOException e) {
+                // The lock is released at the latest when the process exits.
+            }
+            HELD.remove(path);
+        }
+    }
+}
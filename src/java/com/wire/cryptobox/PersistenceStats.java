@@ -0,0 +1,64 @@
+// Copyright (C) 2015 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.cryptobox;
+
+/**
+ * A snapshot of the persistence counters of a <tt>CryptoBox</tt>.
+ *
+ * <p>The ratio of {@link #getSessionWrites} to {@link #getSaveRequests}
+ * shows how many session saves have been coalesced by the
+ * {@link CryptoBox.Durability} of the box.</p>
+ *
+ * @see CryptoBox#getPersistenceStats
+ */
+final public class PersistenceStats {
+    private final long saveRequests;
+    private final long sessionWrites;
+    private final long preKeyWrites;
+    private final long bytesWritten;
+
+    PersistenceStats(long saveRequests, long sessionWrites, long preKeyWrites, long bytesWritten) {
+        this.saveRequests  = saveRequests;
+        this.sessionWrites = sessionWrites;
+        this.preKeyWrites  = preKeyWrites;
+        this.bytesWritten  = bytesWritten;
+    }
+
+    /** The number of calls to {@link CryptoSession#save}. */
+    public long getSaveRequests() {
+        return this.saveRequests;
+    }
+
+    /** The number of sessions actually written to storage. */
+    public long getSessionWrites() {
+        return this.sessionWrites;
+    }
+
+    /** The number of prekeys written to storage. */
+    public long getPreKeyWrites() {
+        return this.preKeyWrites;
+    }
+
+    /** The approximate number of bytes of session state written to storage. */
+    public long getBytesWritten() {
+        return this.bytesWritten;
+    }
+
+    @Override public String toString() {
+        return "PersistenceStats(saveRequests=" + saveRequests + ", sessionWrites=" + sessionWrites
+             + ", preKeyWrites=" + preKeyWrites + ", bytesWritten=" + bytesWritten + ")";
+    }
+}
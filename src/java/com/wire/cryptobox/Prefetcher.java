@@ -0,0 +1,58 @@
+// Copyright (C) 2015 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.cryptobox;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A lazily started pool of a few daemon threads shared by all boxes for
+ * I/O-bound background work, i.e. loading sessions ahead of their use.
+ *
+ * <p>The queue is unbounded; callers limit how much work they submit.</p>
+ */
+final class Prefetcher {
+    private static final int THREADS = 2;
+
+    private static ThreadPoolExecutor executor;
+
+    private Prefetcher() {}
+
+    static void execute(Runnable task) {
+        executor().execute(task);
+    }
+
+    private static synchronized ThreadPoolExecutor executor() {
+        if (executor == null) {
+            ThreadPoolExecutor e = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "cryptobox-prefetch-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            e.allowCoreThreadTimeOut(true);
+            executor = e;
+        }
+        return executor;
+    }
+}
@@ -0,0 +1,55 @@
+// Copyright (C) 2015 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.cryptobox;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single, lazily started daemon thread shared by all boxes for running
+ * periodic background work, e.g. sweeping idle sessions or polling for
+ * handoff requests.
+ *
+ * <p>Tasks must be short and must not block on anything but box and
+ * session locks.</p>
+ */
+final class Scheduler {
+    private static ScheduledExecutorService executor;
+
+    private Scheduler() {}
+
+    static ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long delay, TimeUnit unit) {
+        return executor().scheduleWithFixedDelay(task, delay, delay, unit);
+    }
+
+    private static synchronized ScheduledExecutorService executor() {
+        if (executor == null) {
+            ScheduledThreadPoolExecutor e = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "cryptobox-scheduler");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            e.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            executor = e;
+        }
+        return executor;
+    }
+}
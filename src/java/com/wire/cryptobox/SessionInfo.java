@@ -0,0 +1,44 @@
+// Copyright (C) 2015 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.cryptobox;
+
+/**
+ * A <tt>SessionInfo</tt> describes a session stored by a <tt>CryptoBox</tt>.
+ *
+ * @see CryptoBox#listSessions
+ */
+final public class SessionInfo {
+    private final String id;
+    private final long lastModified;
+
+    SessionInfo(String id, long lastModified) {
+        this.id           = id;
+        this.lastModified = lastModified;
+    }
+
+    /** The ID of the session. */
+    public String getId() {
+        return this.id;
+    }
+
+    /**
+     * The time the session was last written to storage, in milliseconds
+     * since the epoch.
+     */
+    public long getLastModified() {
+        return this.lastModified;
+    }
+}
@@ -0,0 +1,52 @@
+// Copyright (C) 2015 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.cryptobox;
+
+/**
+ * The outcome of the initialisation of a single session by
+ * {@link CryptoBox#initSessionsFromPreKeys}.
+ */
+final public class SessionResult {
+    private final CryptoSession session;
+    private final byte[] message;
+    private final CryptoException error;
+
+    SessionResult(CryptoSession session, byte[] message, CryptoException error) {
+        this.session = session;
+        this.message = message;
+        this.error   = error;
+    }
+
+    /** Whether the session has been initialised and, if requested, the first message encrypted. */
+    public boolean isSuccess() {
+        return this.error == null;
+    }
+
+    /** The session, or <tt>null</tt> if it could not be initialised. */
+    public CryptoSession getSession() {
+        return this.session;
+    }
+
+    /** The encrypted first message, or <tt>null</tt> if none was requested or encryption failed. */
+    public byte[] getMessage() {
+        return this.message;
+    }
+
+    /** The error that occurred, or <tt>null</tt>. */
+    public CryptoException getError() {
+        return this.error;
+    }
+}
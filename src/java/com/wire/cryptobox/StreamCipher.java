@@ -0,0 +1,268 @@
+// Copyright (C) 2015 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.cryptobox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Symmetric, chunked authenticated encryption of payloads under a
+ * per-transfer key.
+ *
+ * <p>An encrypted stream consists of a 5 byte header (version and chunk
+ * size) followed by a sequence of records, each of which is the AES-256-CTR
+ * encryption of a chunk followed by its HMAC-SHA256 tag (encrypt-then-MAC).
+ * Both primitives are available on all supported Android versions, unlike
+ * AES-GCM, which needs API 19. The encryption and MAC keys are derived
+ * from the payload key with HMAC-SHA256. Every record but the last one holds
+ * exactly one chunk of plaintext. The tag covers the header, the index of
+ * the record and whether it is the last one, so that reordering and
+ * truncation are detected. The counter block of every record starts with
+ * its index, which is safe because every key is only ever used for a single
+ * payload.</p>
+ */
+final class StreamCipher {
+    static final int KEY_LEN    = 32;
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final int    TAG_LEN    = 32;
+    private static final int    IV_LEN     = 16;
+    private static final int    HEADER_LEN = 5;
+    private static final byte   VERSION    = 1;
+    private static final String ALGORITHM  = "AES/CTR/NoPadding";
+    private static final String MAC        = "HmacSHA256";
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private StreamCipher() {}
+
+    /** Generate a fresh random payload key. */
+    static byte[] newKey() {
+        byte[] key = new byte[KEY_LEN];
+        random.nextBytes(key);
+        return key;
+    }
+
+    /**
+     * Encrypt everything readable from <tt>in</tt> and write the encrypted
+     * stream to <tt>out</tt>. Only a single chunk is buffered at any time.
+     */
+    static void encrypt(byte[] key, InputStream in, OutputStream out) throws CryptoException, IOException {
+        byte[] header = header(CHUNK_SIZE);
+        byte[] plain  = new byte[CHUNK_SIZE];
+        byte[] cipher = new byte[CHUNK_SIZE + TAG_LEN];
+        Keys   keys   = new Keys(key);
+
+        out.write(header);
+        for (long index = 0; ; ++index) {
+            int n = readFully(in, plain, 0, CHUNK_SIZE);
+            boolean last = n < CHUNK_SIZE;
+            int len = keys.seal(header, index, last, plain, 0, n, cipher, 0);
+            out.write(cipher, 0, len);
+            if (last) {
+                break;
+            }
+        }
+        Arrays.fill(plain, (byte) 0);
+    }
+
+    /**
+     * Decrypt an encrypted stream from <tt>in</tt> and write the plaintext
+     * to <tt>out</tt>. Only a single chunk is buffered at any time.
+     *
+     * <p>Plaintext of records that have been authenticated is written before
+     * the end of the stream is reached. If a later record fails to
+     * authenticate or the stream is truncated, a {@link CryptoException}
+     * with the code {@link CryptoException.Code#INVALID_SIGNATURE} is thrown,
+     * and if data follows the final record, one with the code
+     * {@link CryptoException.Code#DECODE_ERROR}. In either case everything
+     * written so far must be discarded.</p>
+     */
+    static void decrypt(byte[] key, InputStream in, OutputStream out) throws CryptoException, IOException {
+        byte[] header = new byte[HEADER_LEN];
+        if (readFully(in, header, 0, HEADER_LEN) < HEADER_LEN || header[0] != VERSION) {
+            throw new CryptoException(CryptoException.Code.DECODE_ERROR);
+        }
+        int chunkSize = readInt(header, 1);
+        if (chunkSize <= 0 || chunkSize > CHUNK_SIZE) {
+            throw new CryptoException(CryptoException.Code.DECODE_ERROR);
+        }
+
+        byte[] cipher = new byte[chunkSize + TAG_LEN];
+        byte[] plain  = new byte[chunkSize];
+        Keys   keys   = new Keys(key);
+
+        for (long index = 0; ; ++index) {
+            int n = readFully(in, cipher, 0, cipher.length);
+            boolean last = n < cipher.length;
+            if (n < TAG_LEN) {
+                throw new CryptoException(CryptoException.Code.INVALID_SIGNATURE);
+            }
+            int len = keys.open(header, index, last, cipher, 0, n, plain, 0);
+            out.write(plain, 0, len);
+            if (last) {
+                break;
+            }
+        }
+        Arrays.fill(plain, (byte) 0);
+        // Nothing may follow the final record.
+        if (in.read() != -1) {
+            throw new CryptoException(CryptoException.Code.DECODE_ERROR);
+        }
+    }
+
+    /**
+     * Encrypt a payload held in memory as a single, final record whose
+     * header carries the length of the payload instead of a chunk size.
+     */
+    static byte[] seal(byte[] key, byte[] plaintext) throws CryptoException {
+        byte[] header = header(plaintext.length);
+        byte[] result = new byte[HEADER_LEN + plaintext.length + TAG_LEN];
+        System.arraycopy(header, 0, result, 0, HEADER_LEN);
+        new Keys(key).seal(header, 0, true, plaintext, 0, plaintext.length, result, HEADER_LEN);
+        return result;
+    }
+
+    /** Decrypt a payload produced by {@link #seal(byte[], byte[])}. */
+    static byte[] open(byte[] key, byte[] ciphertext) throws CryptoException {
+        if (ciphertext.length < HEADER_LEN + TAG_LEN || ciphertext[0] != VERSION) {
+            throw new CryptoException(CryptoException.Code.DECODE_ERROR);
+        }
+        byte[] header = Arrays.copyOfRange(ciphertext, 0, HEADER_LEN);
+        if (readInt(header, 1) != ciphertext.length - HEADER_LEN - TAG_LEN) {
+            throw new CryptoException(CryptoException.Code.DECODE_ERROR);
+        }
+        byte[] plain = new byte[ciphertext.length - HEADER_LEN - TAG_LEN];
+        new Keys(key).open(header, 0, true, ciphertext, HEADER_LEN, ciphertext.length - HEADER_LEN, plain, 0);
+        return plain;
+    }
+
+    /** The encryption and MAC keys derived from a payload key. */
+    private static final class Keys {
+        private final SecretKeySpec enc;
+        private final Cipher cipher;
+        private final Mac    mac;
+        private final byte[] tag = new byte[TAG_LEN];
+
+        Keys(byte[] key) throws CryptoException {
+            try {
+                Mac kdf = Mac.getInstance(MAC);
+                kdf.init(new SecretKeySpec(key, MAC));
+                byte[] encKey = kdf.doFinal(new byte[] { 1 });
+                byte[] macKey = kdf.doFinal(new byte[] { 2 });
+                enc    = new SecretKeySpec(encKey, "AES");
+                cipher = Cipher.getInstance(ALGORITHM);
+                mac    = Mac.getInstance(MAC);
+                mac.init(new SecretKeySpec(macKey, MAC));
+                Arrays.fill(encKey, (byte) 0);
+                Arrays.fill(macKey, (byte) 0);
+            } catch (GeneralSecurityException e) {
+                throw new CryptoException(CryptoException.Code.INIT_ERROR);
+            }
+        }
+
+        /** Encrypt <tt>len</tt> bytes and append the tag. @return The length of the record. */
+        int seal(byte[] header, long index, boolean last, byte[] in, int inOff, int len,
+                 byte[] out, int outOff) throws CryptoException {
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, enc, iv(index));
+                int n = cipher.doFinal(in, inOff, len, out, outOff);
+                tag(header, index, last, out, outOff, n);
+                mac.doFinal(out, outOff + n);
+                return n + TAG_LEN;
+            } catch (GeneralSecurityException e) {
+                throw new CryptoException(CryptoException.Code.UNKNOWN_ERROR);
+            }
+        }
+
+        /** Authenticate and decrypt a record of <tt>len</tt> bytes. @return The length of the plaintext. */
+        int open(byte[] header, long index, boolean last, byte[] in, int inOff, int len,
+                 byte[] out, int outOff) throws CryptoException {
+            int n = len - TAG_LEN;
+            try {
+                tag(header, index, last, in, inOff, n);
+                mac.doFinal(tag, 0);
+                if (!equal(tag, 0, in, inOff + n, TAG_LEN)) {
+                    throw new CryptoException(CryptoException.Code.INVALID_SIGNATURE);
+                }
+                cipher.init(Cipher.DECRYPT_MODE, enc, iv(index));
+                return cipher.doFinal(in, inOff, n, out, outOff);
+            } catch (GeneralSecurityException e) {
+                throw new CryptoException(CryptoException.Code.UNKNOWN_ERROR);
+            }
+        }
+
+        private void tag(byte[] header, long index, boolean last, byte[] data, int off, int len) {
+            mac.update(header);
+            for (int i = 7; i >= 0; --i) {
+                mac.update((byte) (index >>> (8 * i)));
+            }
+            mac.update((byte) (last ? 1 : 0));
+            mac.update(data, off, len);
+        }
+
+        private static IvParameterSpec iv(long index) {
+            // The index in the upper half, the block counter of the record in the lower half.
+            byte[] iv = new byte[IV_LEN];
+            for (int i = 0; i < 8; ++i) {
+                iv[7 - i] = (byte) (index >>> (8 * i));
+            }
+            return new IvParameterSpec(iv);
+        }
+
+        /** Compare in constant time. */
+        private static boolean equal(byte[] a, int aOff, byte[] b, int bOff, int len) {
+            int diff = 0;
+            for (int i = 0; i < len; ++i) {
+                diff |= a[aOff + i] ^ b[bOff + i];
+            }
+            return diff == 0;
+        }
+    }
+
+    private static byte[] header(int chunkSize) {
+        return new byte[] {
+            VERSION,
+            (byte) (chunkSize >>> 24), (byte) (chunkSize >>> 16),
+            (byte) (chunkSize >>> 8),  (byte)  chunkSize
+        };
+    }
+
+    private static int readInt(byte[] buf, int off) {
+        return ((buf[off]     & 0xFF) << 24) | ((buf[off + 1] & 0xFF) << 16)
+             | ((buf[off + 2] & 0xFF) << 8)  |  (buf[off + 3] & 0xFF);
+    }
+
+    private static int readFully(InputStream in, byte[] buf, int off, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int n = in.read(buf, off + total, len - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,118 @@
+// Copyright (C) 2015 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.cryptobox;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * An {@link OperationListener} that records a trace of all operations, e.g.
+ * of a production box, for deterministic replay with the <tt>Replay</tt>
+ * tool in the <tt>tools</tt> directory.
+ *
+ * <p>A trace is a text file. The first line is {@link #HEADER}, followed by
+ * one line per operation, in the order the operations completed:</p>
+ *
+ * <pre>
+ * start operation session input output result lock-wait duration
+ * </pre>
+ *
+ * <p>where <tt>start</tt> is the time the operation started relative to
+ * the creation of the recorder, <tt>session</tt> is the first 8 bytes of
+ * the SHA-256 hash of the session ID, hex-encoded, or <tt>-</tt>, the sizes
+ * are in bytes, <tt>result</tt> is <tt>OK</tt> or an error code and all
+ * times are in nanoseconds. No payloads are recorded.</p>
+ *
+ * <p>If writing the trace fails, recording stops; see {@link #getError}.</p>
+ *
+ * @see CryptoBox#setOperationListener
+ */
+final public class TraceRecorder implements OperationListener, Closeable {
+    /** The first line of a trace. */
+    public static final String HEADER = "# cryptobox-trace 1";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long start = System.nanoTime();
+    private final Writer out;
+    private IOException error;
+    private boolean closed = false;
+
+    /**
+     * Create a recorder writing to the given stream, which is closed by
+     * {@link #close}.
+     */
+    public TraceRecorder(OutputStream out) throws IOException {
+        this.out = new BufferedWriter(new OutputStreamWriter(out, Charset.forName("US-ASCII")));
+        this.out.write(HEADER);
+        this.out.write('\n');
+    }
+
+    @Override public void onOperation(Operation op, String sid, int inputSize, int outputSize,
+                                      CryptoException.Code error, long lockWaitNanos, long durationNanos) {
+        long offset = System.nanoTime() - lockWaitNanos - durationNanos - start;
+        String line = offset + " " + op + " " + (sid == null ? "-" : hashSessionId(sid)) + " " + inputSize + " "
+                    + outputSize + " " + (error == null ? "OK" : error.toString()) + " "
+                    + lockWaitNanos + " " + durationNanos + "\n";
+        synchronized (this) {
+            if (closed || this.error != null) {
+                return;
+            }
+            try {
+                out.write(line);
+            } catch (IOException e) {
+                this.error = e;
+            }
+        }
+    }
+
+    /** The error that stopped recording, or <tt>null</tt>. */
+    public synchronized IOException getError() {
+        return error;
+    }
+
+    /** Stop recording, flushing and closing the underlying stream. */
+    @Override public synchronized void close() throws IOException {
+        closed = true;
+        out.close();
+    }
+
+    /**
+     * Hash a session ID the way traces and other diagnostics record it, as
+     * the first 8 bytes of its SHA-256 hash, hex-encoded.
+     */
+    public static String hashSessionId(String sid) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(sid.getBytes(Charset.forName("UTF-8")));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        char[] hex = new char[16];
+        for (int i = 0; i < 8; ++i) {
+            hex[2 * i]     = HEX[(digest[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX[digest[i] & 0xF];
+        }
+        return new String(hex);
+    }
+}
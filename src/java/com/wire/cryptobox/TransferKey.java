@@ -0,0 +1,105 @@
+// Copyright (C) 2015 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.cryptobox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The symmetric key of a payload encrypted with
+ * {@link CryptoSession#encryptStream}, obtained from its key message with
+ * {@link CryptoSession#decryptTransferKey}.
+ *
+ * <p>Decrypting the key message advances the session and can therefore be
+ * done only once, whereas the payload can be decrypted with this key any
+ * number of times, e.g. to retry a download that failed partway. To retry
+ * after the process has been restarted, the key can be stored with
+ * {@link #getEncoded} and restored with {@link #fromEncoded}; it must be
+ * kept as confidential as the payload itself.</p>
+ *
+ * <p>Call {@link #destroy} once the payload has been decrypted.</p>
+ */
+final public class TransferKey {
+    private final byte[] key;
+    private volatile boolean destroyed = false;
+
+    TransferKey(byte[] key) {
+        this.key = key;
+    }
+
+    /**
+     * Restore a key stored with {@link #getEncoded}.
+     *
+     * @throws IllegalArgumentException If <tt>encoded</tt> is not a transfer key.
+     */
+    public static TransferKey fromEncoded(byte[] encoded) {
+        if (encoded.length != StreamCipher.KEY_LEN) {
+            throw new IllegalArgumentException("encoded is not a transfer key");
+        }
+        return new TransferKey(encoded.clone());
+    }
+
+    /** Get a copy of the raw key, for storing it until the transfer completes. */
+    public byte[] getEncoded() {
+        errorIfDestroyed();
+        return key.clone();
+    }
+
+    /**
+     * Decrypt a payload produced by {@link CryptoSession#encryptStream}.
+     *
+     * <p>The payload is decrypted chunk by chunk and written to <tt>out</tt>.
+     * If any chunk fails to authenticate or the payload is truncated, a
+     * {@link CryptoException} with the code
+     * {@link CryptoException.Code#INVALID_SIGNATURE} is thrown and any
+     * plaintext already written to <tt>out</tt> must be discarded. The
+     * decryption can then be retried with this key.</p>
+     *
+     * @param in The encrypted payload, read until the end of the stream.
+     * @param out The sink for the plaintext payload.
+     */
+    public void decryptStream(InputStream in, OutputStream out) throws CryptoException, IOException {
+        errorIfDestroyed();
+        StreamCipher.decrypt(key, in, out);
+    }
+
+    /**
+     * Decrypt a payload read from a file channel, starting at its current
+     * position, through a memory mapping of the file.
+     * The position of the channel is advanced past the bytes read, also if
+     * an error stops reading part-way.
+     *
+     * @see #decryptStream(InputStream, OutputStream)
+     */
+    public void decryptStream(FileChannel in, OutputStream out) throws CryptoException, IOException {
+        decryptStream(new MappedInputStream(in), out);
+    }
+
+    /** Overwrite the key. Any later use of it is an {@link IllegalStateException}. */
+    public void destroy() {
+        destroyed = true;
+        Arrays.fill(key, (byte) 0);
+    }
+
+    private void errorIfDestroyed() {
+        if (destroyed) {
+            throw new IllegalStateException("Invalid operation on a destroyed TransferKey.");
+        }
+    }
+}
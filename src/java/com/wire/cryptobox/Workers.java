@@ -0,0 +1,99 @@
+// Copyright (C) 2015 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.cryptobox;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A lazily started pool of daemon threads, one per processor, shared by all
+ * boxes for running CPU-bound work in parallel, e.g. encrypting the first
+ * messages of many new sessions.
+ */
+final class Workers {
+    private static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    private static ThreadPoolExecutor executor;
+
+    private Workers() {}
+
+    /**
+     * Run all tasks in parallel and wait for them to complete. The calling
+     * thread takes part in running the tasks, so that all tasks complete
+     * even if the pool is busy. Tasks must not throw.
+     */
+    static void runAll(final List<? extends Runnable> tasks) {
+        final AtomicInteger next = new AtomicInteger();
+        final Runnable worker = new Runnable() {
+            @Override public void run() {
+                for (int i = next.getAndIncrement(); i < tasks.size(); i = next.getAndIncrement()) {
+                    tasks.get(i).run();
+                }
+            }
+        };
+        int helpers = Math.min(THREADS, tasks.size()) - 1;
+        final CountDownLatch done = new CountDownLatch(Math.max(0, helpers));
+        for (int i = 0; i < helpers; ++i) {
+            executor().execute(new Runnable() {
+                @Override public void run() {
+                    try {
+                        worker.run();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        worker.run();
+
+        // Only waits for tasks already running on other threads.
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor executor() {
+        if (executor == null) {
+            ThreadPoolExecutor e = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "cryptobox-worker-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            e.allowCoreThreadTimeOut(true);
+            executor = e;
+        }
+        return executor;
+    }
+}
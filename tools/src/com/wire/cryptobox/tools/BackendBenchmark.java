@@ -0,0 +1,147 @@
+// Copyright (C) 2015 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.cryptobox.tools;
+
+import com.wire.cryptobox.CryptoBox;
+import com.wire.cryptobox.CryptoException;
+import com.wire.cryptobox.CryptoSession;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * A micro benchmark of the per-message cost of the native backend, for
+ * comparing the JNI and FFM bindings (see <tt>cryptobox.backend</tt>).
+ *
+ * <p>For each payload size, messages are encrypted by one session and
+ * immediately decrypted by its peer, on a single thread and with sessions
+ * kept in memory, so that mostly the cost of the calls into the native
+ * library and of copying the payloads is measured. Every size is warmed up
+ * before the latencies of encrypt and decrypt are recorded separately.</p>
+ *
+ * <p>Run with <tt>make bench-backend</tt> or <tt>make bench-backend-ffm</tt>
+ * from the <tt>tools</tt> directory; see {@link #usage} for the available
+ * options.</p>
+ */
+public final class BackendBenchmark {
+    // Options
+    private int[] sizes      = { 16, 256, 4096, 65536 };
+    private int   warmup     = 100000;
+    private int   iterations = 100000;
+
+    public static void main(String[] args) throws Exception {
+        BackendBenchmark b = new BackendBenchmark();
+        if (!b.parse(args)) {
+            usage();
+            System.exit(1);
+        }
+        b.run();
+    }
+
+    private static void usage() {
+        System.err.println(
+            "usage: BackendBenchmark [options]\n" +
+            "  --sizes N,N,...        payload sizes in bytes (16,256,4096,65536)\n" +
+            "  --warmup N             unmeasured round trips per size (100000)\n" +
+            "  --iterations N         measured round trips per size (100000)");
+    }
+
+    private boolean parse(String[] args) {
+        try {
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                String a = args[i];
+                String v = args[i + 1];
+                if      (a.equals("--sizes"))      sizes      = parseSizes(v);
+                else if (a.equals("--warmup"))     warmup     = Integer.parseInt(v);
+                else if (a.equals("--iterations")) iterations = Integer.parseInt(v);
+                else return false;
+            }
+            if (args.length % 2 != 0) {
+                return false;
+            }
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        return sizes.length > 0 && warmup >= 0 && iterations > 0;
+    }
+
+    private static int[] parseSizes(String v) {
+        String[] parts = v.split(",");
+        int[] s = new int[parts.length];
+        for (int i = 0; i < parts.length; ++i) {
+            s[i] = Integer.parseInt(parts[i].trim());
+            if (s[i] < 0) {
+                throw new IllegalArgumentException(v);
+            }
+        }
+        return s;
+    }
+
+    private void run() throws Exception {
+        File root = TmpDir.create("cryptobox-bench");
+        CryptoBox alice = open(new File(root, "alice"));
+        CryptoBox bob   = open(new File(root, "bob"));
+        try {
+            CryptoSession a = alice.initSessionFromPreKey("bob", bob.newPreKeys(0, 1)[0]);
+            CryptoSession b = bob.initSessionFromMessage("alice", a.encrypt(new byte[1])).getSession();
+
+            System.out.println("# backend " + System.getProperty("cryptobox.backend", "jni")
+                             + ", java " + System.getProperty("java.version"));
+            System.out.printf("%10s %12s %12s %12s %12s %12s%n",
+                              "size", "enc mean ns", "enc p50 ns", "dec mean ns", "dec p50 ns", "MB/s");
+
+            Random random = new Random(0);
+            for (int size : sizes) {
+                byte[] payload = new byte[size];
+                random.nextBytes(payload);
+
+                for (int i = 0; i < warmup; ++i) {
+                    b.decrypt(a.encrypt(payload));
+                }
+
+                Histogram enc = new Histogram();
+                Histogram dec = new Histogram();
+                long encTotal = 0;
+                long decTotal = 0;
+                for (int i = 0; i < iterations; ++i) {
+                    long t0 = System.nanoTime();
+                    byte[] cipher = a.encrypt(payload);
+                    long t1 = System.nanoTime();
+                    b.decrypt(cipher);
+                    long t2 = System.nanoTime();
+                    enc.record(t1 - t0);
+                    dec.record(t2 - t1);
+                    encTotal += t1 - t0;
+                    decTotal += t2 - t1;
+                }
+
+                double mbps = (double) size * iterations * 1000 / (encTotal + decTotal);
+                System.out.printf("%10d %12d %12d %12d %12d %12.1f%n", size,
+                                  encTotal / iterations, enc.percentile(0.5),
+                                  decTotal / iterations, dec.percentile(0.5), mbps);
+            }
+        } finally {
+            alice.close();
+            bob.close();
+            TmpDir.delete(root);
+        }
+    }
+
+    private static CryptoBox open(File dir) throws CryptoException {
+        dir.mkdir();
+        return CryptoBox.open(dir.getAbsolutePath());
+    }
+}
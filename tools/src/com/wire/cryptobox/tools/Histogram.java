@@ -0,0 +1,94 @@
+// Copyright (C) 2015 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.cryptobox.tools;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, log-linear latency histogram that can be recorded into
+ * concurrently and whose memory use does not grow with the number of
+ * samples, so that it can be used for runs lasting many hours.
+ *
+ * <p>Values are bucketed with 16 linear sub-buckets per power of two,
+ * i.e. with a relative error of at most about 6%.</p>
+ */
+final class Histogram {
+    private static final int SUB_BITS    = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS     = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    void record(long value) {
+        counts.incrementAndGet(index(Math.max(0, value)));
+    }
+
+    /** Move all recorded values into a new histogram and reset this one. */
+    Histogram drain() {
+        Histogram h = new Histogram();
+        for (int i = 0; i < BUCKETS; ++i) {
+            h.counts.set(i, counts.getAndSet(i, 0));
+        }
+        return h;
+    }
+
+    long count() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Get the (upper bound of the bucket of the) value at the given
+     * quantile, e.g. <tt>0.999</tt>, or 0 if nothing has been recorded.
+     */
+    long percentile(double q) {
+        long total = count();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    private static int index(long v) {
+        if (v < SUB_BUCKETS) {
+            return (int) v;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exp = index / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        long lower = (1L << exp) | (sub << (exp - SUB_BITS));
+        return lower + (1L << (exp - SUB_BITS)) - 1;
+    }
+}
@@ -0,0 +1,410 @@
+// Copyright (C) 2015 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.cryptobox.tools;
+
+import com.wire.cryptobox.CryptoBox;
+import com.wire.cryptobox.CryptoException;
+import com.wire.cryptobox.CryptoSession;
+import com.wire.cryptobox.NativeMemoryStats;
+import com.wire.cryptobox.PreKey;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single-machine load and soak test for <tt>CryptoBox</tt>.
+ *
+ * <p>Simulates a number of clients, each with its own box in a temporary
+ * directory, establishes sessions between pairs of them via prekeys and
+ * then exchanges messages between random pairs at a configurable rate and
+ * concurrency. In the background sessions are periodically saved, evicted
+ * from memory and re-established from fresh prekeys, which are refilled
+ * as they are used up. Throughput, latency percentiles, heap, resident
+ * and estimated native memory use as well as error counts are reported at
+ * a fixed interval.</p>
+ *
+ * <p>Run with <tt>make load-test ARGS="..."</tt> from the <tt>tools</tt>
+ * directory; see {@link #usage} for the available options.</p>
+ */
+public final class LoadTest {
+    private static final int PREKEY_BATCH = 100;
+
+    // Options
+    private int    clients       = 16;
+    private int    peers         = 4;
+    private int    threads       = 4;
+    private int    rate          = 0;
+    private int    payload       = 256;
+    private int    saveEvery     = 10;
+    private long   duration      = 60;
+    private long   reportEvery   = 10;
+    private long   evictEvery    = 5;
+    private long   reinitEvery   = 30;
+    private boolean keep         = false;
+    private CryptoBox.Durability durability = CryptoBox.Durability.STRICT;
+
+    private final List<Client> boxes = new ArrayList<Client>();
+    private final List<Pair> pairs   = new ArrayList<Pair>();
+    private final ConcurrentHashMap<String, AtomicLong> errors = new ConcurrentHashMap<String, AtomicLong>();
+    private final Histogram interval = new Histogram();
+    private final Histogram total    = new Histogram();
+    private File root;
+    private volatile boolean running = true;
+
+    /** A simulated client. */
+    private static final class Client {
+        final int index;
+        final CryptoBox box;
+        final List<PreKey> prekeys = new ArrayList<PreKey>();
+        int nextPreKeyId = 0;
+
+        Client(int index, CryptoBox box) {
+            this.index = index;
+            this.box   = box;
+        }
+
+        /** Take an unused prekey, generating a new batch if necessary. */
+        synchronized PreKey takePreKey() throws CryptoException {
+            if (prekeys.isEmpty()) {
+                PreKey[] pks = box.newPreKeys(nextPreKeyId, PREKEY_BATCH);
+                nextPreKeyId = (nextPreKeyId + PREKEY_BATCH) % (CryptoBox.MAX_PREKEY_ID + 1);
+                for (PreKey pk : pks) {
+                    prekeys.add(pk);
+                }
+            }
+            return prekeys.remove(prekeys.size() - 1);
+        }
+    }
+
+    /** Two clients with a session between them. Guarded by itself. */
+    private static final class Pair {
+        final Client a;
+        final Client b;
+        long sent = 0;
+
+        Pair(Client a, Client b) {
+            this.a = a;
+            this.b = b;
+        }
+
+        String sidOf(Client c) {
+            return "client-" + (c == a ? b.index : a.index);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadTest t = new LoadTest();
+        if (!t.parse(args)) {
+            usage();
+            System.exit(1);
+        }
+        t.run();
+    }
+
+    private static void usage() {
+        System.err.println(
+            "usage: LoadTest [options]\n" +
+            "  --clients N       number of simulated clients (16)\n" +
+            "  --peers N         sessions per client (4)\n" +
+            "  --threads N       concurrent sender threads (4)\n" +
+            "  --rate N          total messages per second, 0 = unbounded (0)\n" +
+            "  --payload N       plaintext size in bytes (256)\n" +
+            "  --save-every N    save both sessions every N messages of a pair (10)\n" +
+            "  --duration S      run time in seconds (60)\n" +
+            "  --report-every S  report interval in seconds (10)\n" +
+            "  --evict-every S   close a random pair's sessions every S seconds, 0 = never (5)\n" +
+            "  --reinit-every S  re-establish a random pair from prekeys every S seconds, 0 = never (30)\n" +
+            "  --durability D    strict or relaxed (strict)\n" +
+            "  --keep            keep the box directories after the run");
+    }
+
+    private boolean parse(String[] args) {
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                String a = args[i];
+                if (a.equals("--keep")) { keep = true; continue; }
+                if (i + 1 >= args.length) return false;
+                if (a.equals("--durability")) {
+                    durability = CryptoBox.Durability.valueOf(args[++i].toUpperCase());
+                    continue;
+                }
+                long v = Long.parseLong(args[++i]);
+                if      (a.equals("--clients"))      clients     = (int) v;
+                else if (a.equals("--peers"))        peers       = (int) v;
+                else if (a.equals("--threads"))      threads     = (int) v;
+                else if (a.equals("--rate"))         rate        = (int) v;
+                else if (a.equals("--payload"))      payload     = (int) v;
+                else if (a.equals("--save-every"))   saveEvery   = (int) v;
+                else if (a.equals("--duration"))     duration    = v;
+                else if (a.equals("--report-every")) reportEvery = v;
+                else if (a.equals("--evict-every"))  evictEvery  = v;
+                else if (a.equals("--reinit-every")) reinitEvery = v;
+                else return false;
+            }
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        return clients >= 2 && peers >= 1 && threads >= 1 && saveEvery >= 1 && reportEvery >= 1;
+    }
+
+    private void run() throws Exception {
+        root = TmpDir.create("cryptobox-load");
+        System.out.println("# box directories: " + root);
+        setup();
+
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; ++i) {
+            workers.add(start("sender-" + i, new Sender(i)));
+        }
+        workers.add(start("housekeeping", new Housekeeping()));
+
+        long start = System.nanoTime();
+        long end   = start + TimeUnit.SECONDS.toNanos(duration);
+        long last  = start;
+        System.out.println("# elapsed_s  msgs  msgs_per_s  p50_us  p99_us  p999_us  heap_mb  rss_mb  native_mb  sessions  errors");
+        while (System.nanoTime() < end) {
+            long next = Math.min(end, last + TimeUnit.SECONDS.toNanos(reportEvery));
+            TimeUnit.NANOSECONDS.sleep(Math.max(0, next - System.nanoTime()));
+            long now = System.nanoTime();
+            report(now - start, interval.drain(), now - last);
+            last = now;
+        }
+
+        running = false;
+        for (Thread t : workers) {
+            t.join();
+        }
+
+        System.out.println("# total");
+        report(System.nanoTime() - start, total, System.nanoTime() - start);
+        for (Client c : boxes) {
+            System.out.println("# client-" + c.index + " " + c.box.getPersistenceStats());
+            c.box.close();
+        }
+        if (!keep) {
+            TmpDir.delete(root);
+        }
+    }
+
+    private void setup() throws CryptoException, IOException {
+        for (int i = 0; i < clients; ++i) {
+            File dir = new File(root, "client-" + i);
+            dir.mkdir();
+            boxes.add(new Client(i, CryptoBox.open(dir.getAbsolutePath(), durability)));
+        }
+        Set<String> seen = new HashSet<String>();
+        int n = Math.min(peers, clients - 1);
+        for (int i = 0; i < clients; ++i) {
+            for (int k = 1; k <= n; ++k) {
+                int j = (i + k) % clients;
+                if (seen.add(Math.min(i, j) + "-" + Math.max(i, j))) {
+                    pairs.add(new Pair(boxes.get(Math.min(i, j)), boxes.get(Math.max(i, j))));
+                }
+            }
+        }
+        for (Pair p : pairs) {
+            establish(p, false);
+        }
+        System.out.println("# " + clients + " clients, " + pairs.size() + " sessions pairs established");
+    }
+
+    /** (Re-)establish the sessions of a pair from a fresh prekey of <tt>b</tt>. */
+    private void establish(Pair p, boolean reset) throws CryptoException {
+        String sa = p.sidOf(p.a);
+        String sb = p.sidOf(p.b);
+        if (reset) {
+            p.a.box.deleteSession(sa);
+            p.b.box.deleteSession(sb);
+        }
+
+        CryptoSession alice = p.a.box.initSessionFromPreKey(sa, p.b.takePreKey());
+        byte[] hello = alice.encrypt(new byte[payload]);
+        CryptoSession bob = p.b.box.initSessionFromMessage(sb, hello).getSession();
+        alice.save();
+        bob.save();
+    }
+
+    private final class Sender implements Runnable {
+        private final Random random;
+
+        Sender(int seed) {
+            this.random = new Random(seed);
+        }
+
+        @Override public void run() {
+            byte[] plain = new byte[payload];
+            random.nextBytes(plain);
+            long pace = rate > 0 ? TimeUnit.SECONDS.toNanos(threads) / rate : 0;
+            long next = System.nanoTime();
+            while (running) {
+                if (pace > 0) {
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) {
+                        sleep(TimeUnit.NANOSECONDS.toMillis(wait));
+                    }
+                    next += pace;
+                }
+                Pair p = pairs.get(random.nextInt(pairs.size()));
+                boolean forward = random.nextBoolean();
+                Client from = forward ? p.a : p.b;
+                Client to   = forward ? p.b : p.a;
+                synchronized (p) {
+                    long t0 = System.nanoTime();
+                    try {
+                        CryptoSession src = from.box.getSession(p.sidOf(from));
+                        CryptoSession dst = to.box.getSession(p.sidOf(to));
+                        dst.decrypt(src.encrypt(plain));
+                        if (++p.sent % saveEvery == 0) {
+                            src.save();
+                            dst.save();
+                        }
+                        long dt = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - t0);
+                        interval.record(dt);
+                        total.record(dt);
+                    } catch (CryptoException e) {
+                        error(e.code.toString());
+                    } catch (RuntimeException e) {
+                        error(e.getClass().getSimpleName());
+                    }
+                }
+            }
+        }
+    }
+
+    private final class Housekeeping implements Runnable {
+        private final Random random = new Random(-1);
+
+        @Override public void run() {
+            long lastEvict  = System.nanoTime();
+            long lastReinit = System.nanoTime();
+            while (running) {
+                sleep(100);
+                long now = System.nanoTime();
+                if (evictEvery > 0 && now - lastEvict >= TimeUnit.SECONDS.toNanos(evictEvery)) {
+                    lastEvict = now;
+                    Pair p = pairs.get(random.nextInt(pairs.size()));
+                    synchronized (p) {
+                        try {
+                            evict(p.a, p.sidOf(p.a));
+                            evict(p.b, p.sidOf(p.b));
+                        } catch (CryptoException e) {
+                            error(e.code.toString());
+                        }
+                    }
+                }
+                if (reinitEvery > 0 && now - lastReinit >= TimeUnit.SECONDS.toNanos(reinitEvery)) {
+                    lastReinit = now;
+                    Pair p = pairs.get(random.nextInt(pairs.size()));
+                    synchronized (p) {
+                        try {
+                            establish(p, true);
+                        } catch (CryptoException e) {
+                            error(e.code.toString());
+                        }
+                    }
+                }
+            }
+        }
+
+        private void evict(Client c, String sid) throws CryptoException {
+            CryptoSession s = c.box.getSession(sid);
+            s.save();
+            c.box.closeSession(s);
+        }
+    }
+
+    private void error(String code) {
+        AtomicLong n = errors.get(code);
+        if (n == null) {
+            AtomicLong fresh = new AtomicLong();
+            n = errors.putIfAbsent(code, fresh);
+            if (n == null) {
+                n = fresh;
+            }
+        }
+        n.incrementAndGet();
+    }
+
+    private void report(long elapsed, Histogram h, long period) {
+        Runtime rt = Runtime.getRuntime();
+        long heap = (rt.totalMemory() - rt.freeMemory()) >> 20;
+        long rss  = rss();
+        double secs = period / 1e9;
+        NativeMemoryStats nat = CryptoBox.getTotalNativeMemoryStats();
+        System.out.println(String.format("%10d  %d  %.1f  %d  %d  %d  %d  %s  %d  %d  %s",
+                TimeUnit.NANOSECONDS.toSeconds(elapsed),
+                h.count(),
+                h.count() / secs,
+                h.percentile(0.5),
+                h.percentile(0.99),
+                h.percentile(0.999),
+                heap,
+                rss < 0 ? "n/a" : Long.toString(rss >> 20),
+                nat.getApproximateBytes() >> 20,
+                nat.getSessionCount(),
+                new TreeMap<String, AtomicLong>(errors)));
+    }
+
+    /** The resident set size of this process in bytes, or -1 if unknown. */
+    private static long rss() {
+        File status = new File("/proc/self/status");
+        if (!status.exists()) {
+            return -1;
+        }
+        BufferedReader r = null;
+        try {
+            r = new BufferedReader(new FileReader(status));
+            for (String line = r.readLine(); line != null; line = r.readLine()) {
+                if (line.startsWith("VmRSS:")) {
+                    String kb = line.substring(6).trim().split("\\s+")[0];
+                    return Long.parseLong(kb) * 1024;
+                }
+            }
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            if (r != null) {
+                try { r.close(); } catch (IOException e) { /* ignore */ }
+            }
+        }
+        return -1;
+    }
+
+    private static Thread start(String name, Runnable r) {
+        Thread t = new Thread(r, name);
+        t.start();
+        return t;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,491 @@
+// Copyright (C) 2015 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.cryptobox.tools;
+
+import com.wire.cryptobox.CryptoBox;
+import com.wire.cryptobox.CryptoException;
+import com.wire.cryptobox.CryptoSession;
+import com.wire.cryptobox.OperationListener.Operation;
+import com.wire.cryptobox.PreKey;
+import com.wire.cryptobox.TraceRecorder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a trace recorded with {@link TraceRecorder} against a fresh box
+ * in a temporary directory and compares the results with a baseline.
+ *
+ * <p>The operations of the trace are replayed on a single thread in the
+ * order in which they started, with payloads of the recorded sizes generated from a
+ * fixed seed, so that replays of the same trace are deterministic. A
+ * second box plays all remote peers, e.g. producing the messages to be
+ * decrypted; only the operations of the replayed box itself are timed.
+ * Operations that failed in the trace, as well as opening boxes, are
+ * skipped.</p>
+ *
+ * <p>The throughput (operations per second of timed box time) and the
+ * median and 99th percentile latency per operation can be saved as a
+ * baseline. A later replay compares against it and, with
+ * <tt>--max-regression</tt>, fails if the throughput or any median or 99th
+ * percentile latency regressed by more than the given percentage, or by
+ * more than <tt>--max-p99-regression</tt> for the 99th percentile.</p>
+ *
+ * <p>Run with <tt>make replay ARGS="..."</tt> from the <tt>tools</tt>
+ * directory; see {@link #usage} for the available options.</p>
+ */
+public final class Replay {
+    private static final int PREKEY_BATCH = 100;
+
+    /** Operations with fewer samples are not checked for regressions. */
+    private static final int MIN_SAMPLES = 100;
+
+    /** Operations with fewer samples are not checked for regressions of the 99th percentile. */
+    private static final int MIN_TAIL_SAMPLES = 1000;
+
+    // Options
+    private File    trace;
+    private File    baseline;
+    private File    saveBaseline;
+    private long    seed             = 0;
+    private double  pace             = 0;
+    private double  maxRegression    = -1;
+    private double  maxP99Regression = -1;
+    private boolean keep             = false;
+
+    private File root;
+    private CryptoBox local;
+    private CryptoBox remote;
+    private Random random;
+    private final Set<String> established = new HashSet<String>();
+    private final Map<String, CryptoSession> peers = new HashMap<String, CryptoSession>();
+    private final List<PreKey> localPreKeys  = new ArrayList<PreKey>();
+    private final List<PreKey> remotePreKeys = new ArrayList<PreKey>();
+    private int nextLocalPreKeyId  = 0;
+    private int nextRemotePreKeyId = 0;
+    private int preKeySize = 1;
+
+    private final Map<Operation, Histogram> latencies = new EnumMap<Operation, Histogram>(Operation.class);
+    private final Map<String, Integer> errors = new TreeMap<String, Integer>();
+    private long timedNanos = 0;
+    private long timedOps   = 0;
+    private long skipped    = 0;
+
+    /** A recorded operation. */
+    private static final class Entry {
+        final long offset;
+        final Operation op;
+        final String sid;
+        final int input;
+        final int output;
+
+        Entry(long offset, Operation op, String sid, int input, int output) {
+            this.offset = offset;
+            this.op     = op;
+            this.sid    = sid;
+            this.input  = input;
+            this.output = output;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Replay r = new Replay();
+        if (!r.parse(args)) {
+            usage();
+            System.exit(1);
+        }
+        System.exit(r.run() ? 0 : 2);
+    }
+
+    private static void usage() {
+        System.err.println(
+            "usage: Replay --trace FILE [options]\n" +
+            "  --trace FILE               trace recorded with TraceRecorder\n" +
+            "  --baseline FILE            compare with a baseline saved earlier\n" +
+            "  --save-baseline FILE       save the results as a baseline\n" +
+            "  --max-regression PCT       fail if throughput or a p50/p99 latency regressed by more than PCT percent\n" +
+            "  --max-p99-regression PCT   threshold for p99 latencies instead (--max-regression)\n" +
+            "  --seed N                   seed of the generated payloads (0)\n" +
+            "  --pace X                   replay at X times the recorded speed, 0 = as fast as possible (0)\n" +
+            "  --keep                     keep the box directories after the run");
+    }
+
+    private boolean parse(String[] args) {
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                String a = args[i];
+                if (a.equals("--keep")) { keep = true; continue; }
+                if (i + 1 >= args.length) return false;
+                String v = args[++i];
+                if      (a.equals("--trace"))               trace            = new File(v);
+                else if (a.equals("--baseline"))            baseline         = new File(v);
+                else if (a.equals("--save-baseline"))       saveBaseline     = new File(v);
+                else if (a.equals("--max-regression"))      maxRegression    = Double.parseDouble(v);
+                else if (a.equals("--max-p99-regression"))  maxP99Regression = Double.parseDouble(v);
+                else if (a.equals("--seed"))                seed             = Long.parseLong(v);
+                else if (a.equals("--pace"))                pace             = Double.parseDouble(v);
+                else return false;
+            }
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        if (maxP99Regression < 0) {
+            maxP99Regression = maxRegression;
+        }
+        return trace != null && pace >= 0 && (maxP99Regression < 0 || baseline != null);
+    }
+
+    /** @return <tt>false</tt> if a regression has been detected. */
+    private boolean run() throws Exception {
+        List<Entry> entries = read(trace);
+        System.out.println("# " + entries.size() + " operations in " + trace);
+
+        root = TmpDir.create("cryptobox-replay");
+        random = new Random(seed);
+        local  = open(new File(root, "local"));
+        remote = open(new File(root, "remote"));
+        preKeySize = Math.max(1, remotePreKey().data.length);
+
+        long start = System.nanoTime();
+        for (Entry e : entries) {
+            if (pace > 0) {
+                long wait = start + (long) (e.offset / pace) - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+            try {
+                replay(e);
+            } catch (CryptoException ex) {
+                error(e.op + ":" + ex.code);
+            }
+        }
+        long wall = System.nanoTime() - start;
+
+        local.close();
+        remote.close();
+        if (!keep) {
+            TmpDir.delete(root);
+        }
+
+        Properties results = results();
+        report(results, wall);
+        if (saveBaseline != null) {
+            OutputStream out = new FileOutputStream(saveBaseline);
+            try {
+                results.store(out, "cryptobox replay of " + trace.getName());
+            } finally {
+                out.close();
+            }
+            System.out.println("# baseline saved to " + saveBaseline);
+        }
+        return baseline == null || compare(results, load(baseline));
+    }
+
+    private static List<Entry> read(File file) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        BufferedReader r = new BufferedReader(new FileReader(file));
+        try {
+            String header = r.readLine();
+            if (!TraceRecorder.HEADER.equals(header)) {
+                throw new IOException("Not a trace: " + file);
+            }
+            for (String line = r.readLine(); line != null; line = r.readLine()) {
+                String[] f = line.trim().split(" ");
+                if (f.length < 6 || !f[5].equals("OK")) {
+                    continue; // Failed operations are not replayed.
+                }
+                entries.add(new Entry(Long.parseLong(f[0]), Operation.valueOf(f[1]),
+                                      f[2].equals("-") ? null : f[2],
+                                      Integer.parseInt(f[3]), Integer.parseInt(f[4])));
+            }
+        } finally {
+            r.close();
+        }
+        // Traces are in the order in which operations completed, but are
+        // paced by their start. The sort is stable, so ties keep their order.
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override public int compare(Entry a, Entry b) {
+                return a.offset < b.offset ? -1 : (a.offset == b.offset ? 0 : 1);
+            }
+        });
+        return entries;
+    }
+
+    private void replay(Entry e) throws CryptoException {
+        long t0;
+        switch (e.op) {
+            case NEW_PREKEYS: {
+                int n = Math.min(CryptoBox.MAX_PREKEY_ID, Math.max(1, e.output / preKeySize));
+                t0 = System.nanoTime();
+                local.newPreKeys(nextLocalPreKeyId, n);
+                timed(e.op, t0);
+                nextLocalPreKeyId = (nextLocalPreKeyId + n) % (CryptoBox.MAX_PREKEY_ID + 1);
+                break;
+            }
+            case INIT_FROM_PREKEY: {
+                reset(e.sid);
+                PreKey pk = remotePreKey();
+                t0 = System.nanoTime();
+                local.initSessionFromPreKey(e.sid, pk);
+                timed(e.op, t0);
+                established.add(e.sid);
+                break;
+            }
+            case INIT_FROM_MESSAGE: {
+                reset(e.sid);
+                CryptoSession peer = remote.initSessionFromPreKey(e.sid, localPreKey());
+                peers.put(e.sid, peer);
+                byte[] msg = peer.encrypt(payload(e.output));
+                t0 = System.nanoTime();
+                local.initSessionFromMessage(e.sid, msg);
+                timed(e.op, t0);
+                established.add(e.sid);
+                break;
+            }
+            case ENCRYPT: {
+                CryptoSession sess = session(e.sid);
+                byte[] plain = payload(e.input);
+                t0 = System.nanoTime();
+                byte[] cipher = sess.encrypt(plain);
+                timed(e.op, t0);
+                deliver(e.sid, cipher);
+                break;
+            }
+            case DECRYPT: {
+                CryptoSession sess = session(e.sid);
+                byte[] cipher = send(e.sid, payload(e.output));
+                t0 = System.nanoTime();
+                sess.decrypt(cipher);
+                timed(e.op, t0);
+                break;
+            }
+            case SAVE: {
+                CryptoSession sess = session(e.sid);
+                t0 = System.nanoTime();
+                sess.save();
+                timed(e.op, t0);
+                break;
+            }
+            case LOAD: {
+                CryptoSession sess = session(e.sid);
+                sess.save();
+                local.closeSession(sess);
+                t0 = System.nanoTime();
+                local.getSession(e.sid);
+                timed(e.op, t0);
+                break;
+            }
+            case DELETE: {
+                t0 = System.nanoTime();
+                local.deleteSession(e.sid);
+                timed(e.op, t0);
+                established.remove(e.sid);
+                deletePeer(e.sid);
+                break;
+            }
+            default:
+                ++skipped;
+        }
+    }
+
+    /** Get the local session, establishing it with a remote prekey if it does not exist yet. */
+    private CryptoSession session(String sid) throws CryptoException {
+        if (established.add(sid)) {
+            return local.initSessionFromPreKey(sid, remotePreKey());
+        }
+        return local.getSession(sid);
+    }
+
+    /** Delete both sides of a session, if any. */
+    private void reset(String sid) throws CryptoException {
+        if (established.remove(sid)) {
+            local.deleteSession(sid);
+        }
+        deletePeer(sid);
+    }
+
+    private void deletePeer(String sid) throws CryptoException {
+        if (peers.remove(sid) != null) {
+            remote.deleteSession(sid);
+        }
+    }
+
+    /** Deliver a message of the local box to the peer. */
+    private void deliver(String sid, byte[] cipher) throws CryptoException {
+        CryptoSession peer = peers.get(sid);
+        if (peer == null) {
+            peers.put(sid, remote.initSessionFromMessage(sid, cipher).getSession());
+        } else {
+            peer.decrypt(cipher);
+        }
+    }
+
+    /** Produce a message of the peer to the local box. */
+    private byte[] send(String sid, byte[] plain) throws CryptoException {
+        if (!peers.containsKey(sid)) {
+            deliver(sid, local.getSession(sid).encrypt(payload(16)));
+        }
+        return peers.get(sid).encrypt(plain);
+    }
+
+    private PreKey localPreKey() throws CryptoException {
+        if (localPreKeys.isEmpty()) {
+            nextLocalPreKeyId = refill(local, localPreKeys, nextLocalPreKeyId);
+        }
+        return localPreKeys.remove(localPreKeys.size() - 1);
+    }
+
+    private PreKey remotePreKey() throws CryptoException {
+        if (remotePreKeys.isEmpty()) {
+            nextRemotePreKeyId = refill(remote, remotePreKeys, nextRemotePreKeyId);
+        }
+        return remotePreKeys.remove(remotePreKeys.size() - 1);
+    }
+
+    private static int refill(CryptoBox box, List<PreKey> pool, int start) throws CryptoException {
+        for (PreKey pk : box.newPreKeys(start, PREKEY_BATCH)) {
+            pool.add(pk);
+        }
+        return (start + PREKEY_BATCH) % (CryptoBox.MAX_PREKEY_ID + 1);
+    }
+
+    private byte[] payload(int size) {
+        byte[] b = new byte[size];
+        random.nextBytes(b);
+        return b;
+    }
+
+    private void timed(Operation op, long t0) {
+        long dt = System.nanoTime() - t0;
+        Histogram h = latencies.get(op);
+        if (h == null) {
+            h = new Histogram();
+            latencies.put(op, h);
+        }
+        h.record(TimeUnit.NANOSECONDS.toMicros(dt));
+        timedNanos += dt;
+        ++timedOps;
+    }
+
+    private void error(String key) {
+        Integer n = errors.get(key);
+        errors.put(key, n == null ? 1 : n + 1);
+    }
+
+    private Properties results() {
+        Properties p = new Properties();
+        p.setProperty("ops", Long.toString(timedOps));
+        p.setProperty("ops_per_s", String.format(Locale.ROOT, "%.1f", timedNanos == 0 ? 0.0 : timedOps / (timedNanos / 1e9)));
+        for (Map.Entry<Operation, Histogram> e : latencies.entrySet()) {
+            String op = e.getKey().toString();
+            Histogram h = e.getValue();
+            p.setProperty(op + ".count",  Long.toString(h.count()));
+            p.setProperty(op + ".p50_us", Long.toString(h.percentile(0.5)));
+            p.setProperty(op + ".p99_us", Long.toString(h.percentile(0.99)));
+        }
+        return p;
+    }
+
+    private void report(Properties results, long wall) {
+        System.out.println(String.format("# %s timed operations, %s ops/s of box time, %.1f s wall time, %d skipped, errors %s",
+                results.getProperty("ops"), results.getProperty("ops_per_s"), wall / 1e9, skipped, errors));
+        System.out.println("# operation  count  p50_us  p99_us");
+        for (Operation op : latencies.keySet()) {
+            System.out.println(String.format("%-18s %s  %s  %s", op,
+                    results.getProperty(op + ".count"),
+                    results.getProperty(op + ".p50_us"),
+                    results.getProperty(op + ".p99_us")));
+        }
+    }
+
+    /**
+     * @return <tt>false</tt> if a regression beyond <tt>--max-regression</tt>
+     *         or <tt>--max-p99-regression</tt> has been detected.
+     */
+    private boolean compare(Properties results, Properties base) {
+        boolean ok = true;
+        System.out.println("# comparison with " + baseline + " (positive = slower)");
+        double tput = delta(base, results, "ops_per_s");
+        System.out.println(String.format("%-18s %+.1f%%", "throughput", -tput));
+        if (maxRegression >= 0 && -tput > maxRegression) {
+            System.out.println("# REGRESSION: throughput");
+            ok = false;
+        }
+        for (Operation op : Operation.values()) {
+            String key = op.toString();
+            if (results.getProperty(key + ".count") == null || base.getProperty(key + ".count") == null) {
+                continue;
+            }
+            double p50 = delta(base, results, key + ".p50_us");
+            double p99 = delta(base, results, key + ".p99_us");
+            System.out.println(String.format("%-18s p50 %+.1f%%  p99 %+.1f%%", op, p50, p99));
+            long n = Long.parseLong(results.getProperty(key + ".count"));
+            if (maxRegression >= 0 && n >= MIN_SAMPLES && p50 > maxRegression) {
+                System.out.println("# REGRESSION: " + op + " p50");
+                ok = false;
+            }
+            if (maxP99Regression >= 0 && n >= MIN_TAIL_SAMPLES && p99 > maxP99Regression) {
+                System.out.println("# REGRESSION: " + op + " p99");
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    /** The relative change of a value from the baseline, in percent. */
+    private static double delta(Properties base, Properties results, String key) {
+        double b = Double.parseDouble(base.getProperty(key, "0"));
+        double r = Double.parseDouble(results.getProperty(key, "0"));
+        return b == 0 ? 0 : (r - b) * 100 / b;
+    }
+
+    private static Properties load(File file) throws IOException {
+        Properties p = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            p.load(in);
+        } finally {
+            in.close();
+        }
+        return p;
+    }
+
+    private static CryptoBox open(File dir) throws CryptoException {
+        dir.mkdir();
+        return CryptoBox.open(dir.getAbsolutePath());
+    }
+}
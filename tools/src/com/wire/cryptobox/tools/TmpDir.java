@@ -0,0 +1,43 @@
+// Copyright (C) 2015 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.cryptobox.tools;
+
+import java.io.File;
+import java.io.IOException;
+
+/** Temporary directories for the boxes of the tools. */
+final class TmpDir {
+    private TmpDir() {}
+
+    /** Create a new, empty temporary directory whose name starts with <tt>name</tt>. */
+    static File create(String name) throws IOException {
+        File tmpDir = File.createTempFile(name, "");
+        tmpDir.delete();
+        tmpDir.mkdir();
+        return tmpDir;
+    }
+
+    /** Delete a file or directory with all its contents. */
+    static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+}